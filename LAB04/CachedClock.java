@@ -0,0 +1,34 @@
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+
+// the time as hh:mm:ss, formatted once per second and shared: every
+// message of the same second gets the same String. Thread safe without a
+// lock, a thread that sees a new second formats it and publishes it.
+class CachedClock {
+    private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss");
+
+    // a second and its text, replaced as a whole
+    private static class Tick {
+        final long second;
+        final String text;
+
+        Tick(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+
+    private final ZoneId zone = ZoneId.systemDefault();
+    private volatile Tick tick = new Tick(-1, "");
+
+    String now() {
+        long second = System.currentTimeMillis() / 1000;
+        Tick t = tick;
+        if (t.second != second) {
+            // two threads may both format the new second, they agree on it
+            t = new Tick(second, FORMAT.format(LocalTime.ofInstant(Instant.ofEpochSecond(second), zone)));
+            tick = t;
+        }
+        return t.text;
+    }
+}
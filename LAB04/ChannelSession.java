@@ -0,0 +1,234 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// a client connection on a non-blocking channel, read and flushed by the
+// selector loop it is registered with: what NioServer.Session and
+// WebSocketGateway.Session share. Any thread may queue a message, only the
+// loop writes: the frames wait in the Outbox until the socket takes them.
+// The subclass reads and decodes its protocol, and says how a message is
+// framed and when the loop flushes.
+abstract class ChannelSession implements ChatConnection {
+    final Server server;
+    final ServerOptions options;
+    final SocketChannel channel;
+    // TLS over the channel if the Server has it, and what is written to
+    final TlsChannel tls;
+    final GatheringByteChannel io;
+    final SelectionKey key;
+    // my unique id (easier for deconnection)
+    final int id;
+    // the Username of the client, null until it logged in
+    String username;
+    // timestamp
+    String date;
+    // the room it is in
+    private volatile ChatRoom room;
+    // how fast it may send, only used by the loop
+    private final TokenBucket sendLimit;
+    final Heartbeat heartbeat = new Heartbeat();
+    // closes it if it does not log in, see Server.loginDeadline
+    final TimerWheel.Timeout deadline;
+    // encoded frames waiting for the socket to accept them
+    final Outbox outbox;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    volatile boolean closed;
+    // close once everything pending is written, nothing more is read
+    boolean closing;
+
+    ChannelSession(Server server, ServerOptions options, SocketChannel channel, Selector selector)
+            throws IOException {
+        this.server = server;
+        this.options = options;
+        this.channel = channel;
+        tls = server.tls == null ? null : new TlsChannel(channel, TlsChannel.serverEngine(server.tls));
+        io = tls != null ? tls : channel;
+        id = Server.nextId();
+        sendLimit = options.userLimit();
+        outbox = new Outbox(options.highWatermark, options.lowWatermark, options.slowPolicy, server.dropped);
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+        deadline = server.loginDeadline(() -> execute(() -> {
+            if (username == null)
+                close();
+        }));
+    }
+
+    // run a task on the loop of the session, from any thread
+    abstract void execute(Runnable task);
+
+    // whether this is the thread of the loop
+    abstract boolean inLoop();
+
+    // have the loop flush what was queued, on the loop only
+    abstract void flushLater();
+
+    // the bytes of a message for this client
+    abstract ByteBuffer frame(EncodedMessage msg);
+
+    // what flush hands to one gathering write, emptied after each
+    abstract ByteBuffer[] batch();
+
+    public int getClientId() {
+        return id;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getDate() {
+        return date;
+    }
+
+    public ChatRoom getRoom() {
+        return room;
+    }
+
+    public void setRoom(ChatRoom room) {
+        this.room = room;
+    }
+
+    public long getQueuedBytes() {
+        return outbox.getQueuedBytes();
+    }
+
+    public long getDroppedMessages() {
+        return outbox.getDropped();
+    }
+
+    public TokenBucket getSendLimit() {
+        return sendLimit;
+    }
+
+    public Heartbeat getHeartbeat() {
+        return heartbeat;
+    }
+
+    // read what the socket has into buf, -1 at the end of the stream
+    int read(ByteBuffer buf) throws IOException {
+        int n = tls != null ? tls.read(buf) : channel.read(buf);
+        if (n > 0) {
+            server.bytesIn.add(n);
+            heartbeat.heard = true;
+        }
+        return n;
+    }
+
+    // queue bytes of the loop, not counted as a message, and write them
+    void send(byte[] bytes) {
+        outbox.offer(ByteBuffer.wrap(bytes));
+        flush();
+    }
+
+    // queue a message for the client, from any thread
+    public boolean writeMsg(EncodedMessage msg) {
+        if (closed || !queue(frame(msg)))
+            return false;
+        server.messagesOut.inc();
+        return true;
+    }
+
+    // queue a frame and have the loop flush it, from any thread
+    boolean queue(ByteBuffer frame) {
+        // a client that does not read is not waited for, see Outbox
+        if (!outbox.offer(frame)) {
+            server.display(Server.notif + username + " is not reading its messages, disconnecting" + Server.notif);
+            server.slowDisconnects.inc();
+            close();
+            // out of the list too, not from inside a broadcast that may
+            // be looping over it
+            execute(() -> {
+                if (username != null)
+                    server.remove(id);
+            });
+            return false;
+        }
+        if (inLoop())
+            flushLater();
+        else if (flushScheduled.compareAndSet(false, true))
+            execute(() -> {
+                flushScheduled.set(false);
+                flushLater();
+            });
+        return true;
+    }
+
+    // write pending frames until the socket would block, on the loop only
+    void flush() {
+        if (closed)
+            return;
+        ByteBuffer[] batch = batch();
+        try {
+            int n;
+            while ((n = outbox.peek(batch, options.coalesceBytes)) > 0) {
+                server.bytesOut.add(io.write(batch, 0, n));
+                server.writes.inc();
+                outbox.remove(batch, n);
+                boolean full = batch[n - 1].hasRemaining();
+                // the batch does not keep the frames
+                Arrays.fill(batch, 0, n, null);
+                if (full)
+                    break;
+            }
+            boolean pending = tls != null && !tls.flush();
+            if (closing && outbox.isEmpty() && !pending) {
+                close();
+                return;
+            }
+            // ask to be told when the socket can take the rest, a TLS
+            // handshake waits for the client instead
+            boolean waiting = pending || !outbox.isEmpty() && (tls == null || !tls.isHandshaking());
+            key.interestOps(waiting ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        } catch (IOException e) {
+            outbox.clear();
+            // not from inside a broadcast that may be looping over the client list
+            execute(() -> drop(Server.notif + "Error sending message to " + username + Server.notif));
+        }
+    }
+
+    // the peer is gone: remove it from the client list and close
+    void drop(String why) {
+        if (closed)
+            return;
+        if (username != null)
+            server.display(why);
+        close();
+        if (username != null)
+            server.remove(id);
+    }
+
+    // handling the session threw, a bug or an input nothing expected: drop
+    // it alone, its loop goes on serving the others
+    void crashed(Throwable e) {
+        server.display("Exception in the connection of " + (username != null ? username : "client " + id) + ": " + e);
+        if (closed)
+            return;
+        close();
+        if (username != null)
+            server.remove(id);
+    }
+
+    // stop reading and close once the queue is written, see flush
+    public void finish() {
+        execute(() -> {
+            closing = true;
+            flush();
+        });
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public void close() {
+        closed = true;
+        server.cancel(deadline);
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,60 @@
+// a client connected to the server, whatever drives its socket
+// (one ClientThread per socket or the NioServer event loops)
+interface ChatConnection {
+    // unique id of the connection
+    int getClientId();
+
+    // the username sent by the client at login
+    String getUsername();
+
+    // when the client joined, as shown by WHOISIN
+    String getDate();
+
+    // the room the client is in, null before it joined
+    ChatRoom getRoom();
+
+    void setRoom(ChatRoom room);
+
+    // bytes waiting to be written to the client
+    long getQueuedBytes();
+
+    // messages dropped because the client was too slow to read them
+    long getDroppedMessages();
+
+    // how fast the client may send messages to its room, null for no limit
+    default TokenBucket getSendLimit() {
+        return null;
+    }
+
+    // its liveness, null if it is not watched, see Server.beat
+    default Heartbeat getHeartbeat() {
+        return null;
+    }
+
+    // ask the client to answer, false if it cannot (an older or serialized
+    // protocol) or if it is gone
+    default boolean ping() {
+        return false;
+    }
+
+    // the token a later RESUME of the client has to show to replace this
+    // connection, sent if its protocol knows it, see FrameCodec.TOKEN
+    default void resumeToken(String token) {
+    }
+
+    // send a String to the client, false if it is gone
+    default boolean writeMsg(String msg) {
+        return writeMsg(new EncodedMessage(msg, false));
+    }
+
+    // send a message that may be shared with other clients, false if it is gone
+    boolean writeMsg(EncodedMessage msg);
+
+    // stop reading, write what is queued and close, see Server.drainClients
+    void finish();
+
+    boolean isClosed();
+
+    // close everything
+    void close();
+}
@@ -0,0 +1,76 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.*;
+
+// the append-only history of the messages broadcast in the rooms, kept in a
+// SegmentStore. The body of a record is
+//   byte roomLength | room | UTF-8 text
+// and the log is read backwards from its end.
+class ChatLog implements Closeable {
+    private final SegmentStore store;
+
+    ChatLog(Path dir, int segmentSize, int maxSegments, long fsyncMillis) throws IOException {
+        store = new SegmentStore(dir, ".log", "history", segmentSize, maxSegments, fsyncMillis, null);
+    }
+
+    // add a message broadcast in a room
+    void append(String room, String text) throws IOException {
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        if (roomBytes.length > 255)
+            throw new IOException("room name too long for the history");
+        store.append(new byte[] { (byte) roomBytes.length }, roomBytes, textBytes);
+    }
+
+    // the last n messages of a room, oldest first, stopping before they add
+    // up to more than maxBytes. Only the records on the way are read from the
+    // mapped segments, the log is not loaded.
+    List<String> last(String room, int n, long maxBytes) {
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        List<ByteBuffer> maps = new ArrayList<ByteBuffer>();
+        List<Integer> ends = new ArrayList<Integer>();
+        // what was written so far, it does not change below these ends
+        for (SegmentStore.Segment s : store.segments()) {
+            maps.add(0, s.map.duplicate());
+            ends.add(0, s.end);
+        }
+        ArrayList<String> found = new ArrayList<String>();
+        long bytes = 0;
+        search: for (int i = 0; i < maps.size() && found.size() < n; i++) {
+            ByteBuffer map = maps.get(i);
+            int pos = ends.get(i);
+            while (pos > 0 && found.size() < n) {
+                int length = map.getInt(pos - 4);
+                int start = pos - 8 - length;
+                if (matches(map, start + 4, roomBytes)) {
+                    byte[] text = new byte[length - 1 - roomBytes.length];
+                    bytes += text.length;
+                    if (bytes > maxBytes)
+                        break search;
+                    map.get(start + 5 + roomBytes.length, text);
+                    found.add(new String(text, StandardCharsets.UTF_8));
+                }
+                pos = start;
+            }
+        }
+        Collections.reverse(found);
+        return found;
+    }
+
+    // is the room of the record at pos this one
+    private static boolean matches(ByteBuffer map, int pos, byte[] room) {
+        if ((map.get(pos) & 0xff) != room.length)
+            return false;
+        for (int i = 0; i < room.length; i++) {
+            if (map.get(pos + 1 + i) != room[i])
+                return false;
+        }
+        return true;
+    }
+
+    public void close() {
+        store.close();
+    }
+}
@@ -2,7 +2,14 @@
 import java.io.*;
 
 public class ChatMessage implements Serializable {
+    // the one of the first ChatMessage, that had no room types: the
+    // Clients built before them still talk to this Server
+    private static final long serialVersionUID = -6067470153967221972L;
     static final int WHOISIN = 0, MESSAGE = 1, LOGOUT = 2;
+    // rooms: the message is the room name for JOIN, empty for LEAVE and LIST
+    static final int JOIN = 3, LEAVE = 4, LIST = 5;
+    // the message is how many of the last messages of the room to get
+    static final int HISTORY = 6;
     private int type;
     private String message;
 
@@ -0,0 +1,87 @@
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// a named channel: the messages sent in it only go to its members
+class ChatRoom {
+    // where every Client starts, never removed
+    static final String LOBBY = "lobby";
+    // the longest name a room may have
+    static final int MAX_NAME = 32;
+
+    final String name;
+    // the Clients in the room
+    final Set<ChatConnection> members = ConcurrentHashMap.newKeySet();
+    // the number of the last message, from the time the room was made so that
+    // a room made again, or on a restarted Server, never reuses a number
+    private final long first;
+    private long seq;
+    // the last messages, for the Clients that come back, see since(): at
+    // most keep of them and maxChars of text together, a few big messages
+    // do not hold the memory of many small ones
+    private final EncodedMessage[] recent;
+    private final long maxChars;
+    private long chars;
+    // the number of the oldest message kept
+    private long oldest;
+
+    ChatRoom(String name) {
+        this(name, 0, 0);
+    }
+
+    ChatRoom(String name, int keep, long maxChars) {
+        this.name = name;
+        first = seq = System.currentTimeMillis() * 1000;
+        recent = new EncodedMessage[keep];
+        this.maxChars = maxChars;
+        oldest = first + 1;
+    }
+
+    // number the next message of the room and keep it. The caller holds the
+    // lock of the room until it is queued for every member, so that they
+    // all get the messages in the order of their numbers.
+    EncodedMessage publish(String text, boolean direct) {
+        EncodedMessage m = new EncodedMessage(text, direct, name, ++seq);
+        if (recent.length > 0) {
+            // make room, by number and by size
+            while (oldest <= seq - recent.length || oldest < seq && chars + text.length() > maxChars)
+                forget(oldest++);
+            if (text.length() <= maxChars) {
+                recent[(int) (seq % recent.length)] = m;
+                chars += text.length();
+            } else {
+                // too big to keep, a Client that missed it is told so
+                oldest = seq + 1;
+            }
+        }
+        return m;
+    }
+
+    private void forget(long n) {
+        int slot = (int) (n % recent.length);
+        if (recent[slot] != null)
+            chars -= recent[slot].text.length();
+        recent[slot] = null;
+    }
+
+    // add the kept messages after number after to out, oldest first, false
+    // if some of them are not kept any more. The caller holds the lock.
+    boolean since(long after, List<EncodedMessage> out) {
+        long oldest = Math.max(this.oldest, seq - recent.length + 1);
+        for (long n = Math.max(after + 1, oldest); n <= seq; n++)
+            out.add(recent[(int) (n % recent.length)]);
+        return after + 1 >= oldest;
+    }
+
+    // one word of letters, digits, '-' or '_'
+    static boolean isValidName(String name) {
+        if (name.isEmpty() || name.length() > MAX_NAME)
+            return false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '-' && c != '_')
+                return false;
+        }
+        return true;
+    }
+}
@@ -2,6 +2,8 @@
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.zip.Inflater;
+import javax.net.ssl.*;
 
 //The Client that can be run as a console
 public class Client {
@@ -10,9 +12,23 @@ public class Client {
     // for I/O
     private ObjectInputStream sInput; // to read from the socket
     private ObjectOutputStream sOutput; // to write on the socket
+    private DataInputStream dInput; // to read frames when binary
+    private DataOutputStream dOutput; // to write frames when binary
     private Socket socket; // socket object
     private String server, username; // server and username
     private int port; // port
+    private boolean binary; // true to speak the binary protocol, see FrameCodec
+    private boolean tls; // true to connect with TLS, trusting the javax.net.ssl.trustStore
+    private Inflater inflater; // for the frames the server deflates
+    private volatile FrameDeflater deflater; // set once the server agreed to compression
+    private int version; // of the binary protocol the server answered with
+    private String lastRoom = ChatRoom.LOBBY; // where we are and the last message we got there,
+    private long lastSeq; // to come back to when the connection drops, see FrameCodec.RESUME
+    private volatile String resumeToken; // what the RESUME shows to replace our old connection
+    private volatile boolean loggingOut; // no reconnecting after LOGOUT or a refused login
+    private int reconnects; // attempts since the last message of a room
+    // what the server sends is shown by another thread, the reader only queues it
+    private final ClientConsole console = new ClientConsole(System.out, ClientConsole.CAPACITY);
 
     public String getUsername() {
         return username;
@@ -23,18 +39,47 @@ public class Client {
     }
 
     Client(String server, int port, String username) {
+        this(server, port, username, true);
+    }
+
+    Client(String server, int port, String username, boolean binary) {
+        this(server, port, username, binary, false);
+    }
+
+    Client(String server, int port, String username, boolean binary, boolean tls) {
         this.server = server;
         this.port = port;
         this.username = username;
+        this.binary = binary;
+        this.tls = tls;
     }
 
     /*
      * To start the chat
      */
     public boolean start() {
+        boolean triedBinary = binary;
+        if (connect())
+            return true;
+        // an old server did not answer HELLO, connect() switched to serialization
+        return triedBinary && !binary && connect();
+    }
+
+    private boolean connect() {
+        // nothing deflated until this connection agrees to it
+        deflater = null;
         // try to connect to the server
         try {
-            socket = new Socket(server, port);
+            if (tls) {
+                // the default factory keeps the session, reconnecting resumes it
+                SSLSocket ssl = (SSLSocket) SSLSocketFactory.getDefault().createSocket(server, port);
+                SSLParameters params = ssl.getSSLParameters();
+                params.setEndpointIdentificationAlgorithm("HTTPS");
+                ssl.setSSLParameters(params);
+                ssl.startHandshake();
+                socket = ssl;
+            } else
+                socket = new Socket(server, port);
         }
         // exception handler if it failed
         catch (Exception ec) {
@@ -45,18 +90,56 @@ public class Client {
         display(msg);
         /* Creating both Data Stream */
         try {
-            sInput = new ObjectInputStream(socket.getInputStream());
-            sOutput = new ObjectOutputStream(socket.getOutputStream());
+            if (binary) {
+                dInput = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                dOutput = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                // skip the ObjectStream header, then say HELLO and wait for the answer
+                // (an old server may never answer)
+                socket.setSoTimeout(5000);
+                dInput.readFully(new byte[4]);
+                byte[] hello = FrameCodec.hello();
+                dOutput.write(hello);
+                dOutput.flush();
+                byte[] answer = new byte[hello.length];
+                dInput.readFully(answer);
+                // the server may speak an older version
+                version = answer[FrameCodec.MAGIC.length];
+                if (!Arrays.equals(answer, 0, FrameCodec.MAGIC.length, hello, 0, FrameCodec.MAGIC.length)
+                        || version < 1 || version > FrameCodec.VERSION)
+                    throw new StreamCorruptedException("no binary protocol");
+                socket.setSoTimeout(0);
+            } else {
+                sInput = new ObjectInputStream(socket.getInputStream());
+                sOutput = new ObjectOutputStream(socket.getOutputStream());
+            }
         } catch (IOException eIO) {
+            if (binary) {
+                // fall back to Java serialization
+                display("Server does not speak the binary protocol, using serialization.");
+                binary = false;
+                disconnect();
+                return false;
+            }
             display("Exception creating new Input/output Streams: " + eIO);
             return false;
         }
+        if (binary)
+            inflater = new Inflater(true);
         // creates the Thread to listen from the server
         new ListenFromServer().start();
         // Send our username to the server this is the only message that we
         // will send as a String. All other messages will be ChatMessage objects
         try {
-            sOutput.writeObject(username);
+            if (binary) {
+                // coming back, ask for what we missed and to replace the
+                // connection the server may still hold for us
+                if (version >= 2 && (lastSeq > 0 || reconnects > 0))
+                    FrameCodec.write(dOutput, FrameCodec.RESUME, FrameCodec.seq(lastRoom, lastSeq, resumeToken));
+                FrameCodec.write(dOutput, FrameCodec.LOGIN, username);
+                // a server that does not know compression ignores the offer
+                FrameCodec.write(dOutput, FrameCodec.COMPRESS, FrameCodec.DEFLATE);
+            } else
+                sOutput.writeObject(username);
         } catch (IOException eIO) {
             display("Exception doing login : " + eIO);
             disconnect();
@@ -76,14 +159,52 @@ public class Client {
     /*
      * To send a message to the server
      */
-    void sendMessage(ChatMessage msg) {
+    synchronized void sendMessage(ChatMessage msg) {
+        if (msg.getType() == ChatMessage.LOGOUT)
+            loggingOut = true;
+        try {
+            if (binary && deflater != null) {
+                dOutput.write(deflater.encode(msg.getType(), msg.getMessage()));
+                dOutput.flush();
+            } else if (binary)
+                FrameCodec.write(dOutput, msg.getType(), msg.getMessage());
+            else
+                sOutput.writeObject(msg);
+        } catch (IOException e) {
+            display("Exception writing to server: " + e);
+        }
+    }
+
+    /*
+     * To answer a PING of the server, between the messages the user sends
+     */
+    private synchronized void pong(String payload) {
         try {
-            sOutput.writeObject(msg);
+            FrameCodec.write(dOutput, FrameCodec.PONG, payload);
         } catch (IOException e) {
             display("Exception writing to server: " + e);
         }
     }
 
+    /*
+     * When the connection drops: connect again, a few times, waiting longer
+     * each time, and come back where we left off
+     */
+    private void reconnect() {
+        while (reconnects < 5) {
+            try {
+                Thread.sleep(1000L << reconnects++);
+            } catch (InterruptedException e) {
+                return;
+            }
+            display("Reconnecting to " + server + ":" + port + "...");
+            disconnect();
+            if (start())
+                return;
+        }
+        display("Could not reconnect, giving up.");
+    }
+
     /*
      * When something goes wrong
      * Close the Input/Output streams and disconnect
@@ -99,6 +220,16 @@ public class Client {
                 sOutput.close();
         } catch (Exception e) {
         }
+        try {
+            if (dInput != null)
+                dInput.close();
+        } catch (Exception e) {
+        }
+        try {
+            if (dOutput != null)
+                dOutput.close();
+        } catch (Exception e) {
+        }
 
         try {
 
@@ -113,38 +244,43 @@ public class Client {
         int portNumber = 1500;
         String serverAddress = "localhost";
         String userName = "Anonymous";
+        boolean binary = true;
+        boolean tls = false;
         Scanner scan = new Scanner(System.in);
         System.out.println("Enter the username: ");
         userName = scan.nextLine();
-        // different case according to the length of the arguments.
-        switch (args.length) {
-            case 3:
-                // for > javac Client username portNumber serverAddr
-                serverAddress = args[2];
-            case 2:
-                // for > javac Client username portNumber
-                try {
-                    portNumber = Integer.parseInt(args[1]);
-                } catch (Exception e) {
-                    System.out.println("Invalid port number.");
-                    System.out.println("Usage is: > java Client [username] [portNumber] [serverAddress]");
+        // each argument given sets its value, the missing ones keep their
+        // default. If number of arguments are invalid
+        if (args.length > 5) {
+            System.out.println("Usage is: > java Client [username] [portNumber] [serverAddress] [binary|serial] [tls]");
 
-                    return;
-                }
-            case 1:
-                // for > javac Client username
-                userName = args[0];
-            case 0:
-                // for > java Client
-                break;
-            // if number of arguments are invalid
-            default:
-                System.out.println("Usage is: > java Client [username] [portNumber] [serverAddress]");
+            return;
+        }
+        // for > javac Client username portNumber serverAddr binary tls
+        if (args.length >= 5)
+            tls = args[4].equalsIgnoreCase("tls");
+        // for > javac Client username portNumber serverAddr serial
+        if (args.length >= 4)
+            binary = !args[3].equalsIgnoreCase("serial");
+        // for > javac Client username portNumber serverAddr
+        if (args.length >= 3)
+            serverAddress = args[2];
+        // for > javac Client username portNumber
+        if (args.length >= 2) {
+            try {
+                portNumber = Integer.parseInt(args[1]);
+            } catch (Exception e) {
+                System.out.println("Invalid port number.");
+                System.out.println("Usage is: > java Client [username] [portNumber] [serverAddress] [binary|serial] [tls]");
 
                 return;
+            }
         }
+        // for > javac Client username
+        if (args.length >= 1)
+            userName = args[0];
         // create the Client object
-        Client client = new Client(serverAddress, portNumber, userName);
+        Client client = new Client(serverAddress, portNumber, userName, binary, tls);
         // try to connect to the server and return if not connected
         if (!client.start())
             return;
@@ -155,6 +291,9 @@ public class Client {
 
         System.out.println("3. Type 'WHOISIN' without quotes to see list of active clients");
         System.out.println("4. Type 'LOGOUT' without quotes to logoff from server");
+        System.out.println("5. Type 'JOIN room' without quotes to move to a room, 'LEAVE' to go back to the lobby");
+        System.out.println("6. Type 'LIST' without quotes to see the list of rooms");
+        System.out.println("7. Type 'HISTORY n' without quotes to see the last n messages of your room");
         // infinite loop to get the input from the user
         while (true) {
             System.out.print("> ");
@@ -169,6 +308,16 @@ public class Client {
             else if (msg.equalsIgnoreCase("WHOISIN")) {
                 client.sendMessage(new ChatMessage(ChatMessage.WHOISIN, ""));
             }
+            // rooms
+            else if (msg.regionMatches(true, 0, "JOIN ", 0, 5)) {
+                client.sendMessage(new ChatMessage(ChatMessage.JOIN, msg.substring(5).trim()));
+            } else if (msg.equalsIgnoreCase("LEAVE")) {
+                client.sendMessage(new ChatMessage(ChatMessage.LEAVE, ""));
+            } else if (msg.equalsIgnoreCase("LIST")) {
+                client.sendMessage(new ChatMessage(ChatMessage.LIST, ""));
+            } else if (msg.regionMatches(true, 0, "HISTORY ", 0, 8)) {
+                client.sendMessage(new ChatMessage(ChatMessage.HISTORY, msg.substring(8).trim()));
+            }
             // regular text message
             else {
                 client.sendMessage(new ChatMessage(ChatMessage.MESSAGE, msg));
@@ -178,6 +327,11 @@ public class Client {
         scan.close();
         // client completed its job. disconnect client.
         client.disconnect();
+        // show what came before the logout
+        try {
+            client.console.flush(1000);
+        } catch (InterruptedException e) {
+        }
     }
 
     /*
@@ -188,12 +342,44 @@ public class Client {
             while (true) {
                 try {
                     // read the message form the input datastream
-                    String msg = (String) sInput.readObject();
-                    // print the message
-                    System.out.println(msg);
-                    System.out.print("> ");
+                    String msg;
+                    if (binary) {
+                        ChatMessage cm = FrameCodec.read(dInput, inflater);
+                        // the answer to our compression offer
+                        if (cm.getType() == FrameCodec.COMPRESS) {
+                            if (cm.getMessage().equals(FrameCodec.DEFLATE))
+                                deflater = new FrameDeflater(FrameDeflater.DEFAULT_THRESHOLD);
+                            continue;
+                        }
+                        // what we show when we come back
+                        if (cm.getType() == FrameCodec.TOKEN) {
+                            resumeToken = cm.getMessage();
+                            continue;
+                        }
+                        // the server wants to know we are still here
+                        if (cm.getType() == FrameCodec.PING) {
+                            pong(cm.getMessage());
+                            continue;
+                        }
+                        msg = cm.getMessage();
+                        // the server will not have us, no coming back
+                        if (cm.getType() == FrameCodec.REFUSED)
+                            loggingOut = true;
+                        // a message of our room, remember where we are
+                        if (cm.getType() == FrameCodec.SEQ) {
+                            lastSeq = FrameCodec.seqOf(msg);
+                            lastRoom = FrameCodec.roomOf(msg);
+                            msg = msg.substring(msg.indexOf('\0', lastRoom.length() + 1) + 1);
+                            reconnects = 0;
+                        }
+                    } else
+                        msg = (String) sInput.readObject();
+                    // for the console to print, reading on at once
+                    console.println(msg);
                 } catch (IOException e) {
-                    display(notif + "Server has closed the connection: " + e + notif);
+                    console.println(notif + "Server has closed the connection: " + e + notif);
+                    if (!loggingOut)
+                        reconnect();
                     break;
                 } catch (ClassNotFoundException e2) {
                 }
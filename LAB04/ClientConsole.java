@@ -0,0 +1,100 @@
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// what the Client shows, printed by a thread of its own so that a slow
+// console never holds up the thread reading the socket. The reader queues
+// the lines, the printer takes all of them at once and writes them in one
+// go. The queue is bounded: past capacity the oldest lines are skipped, and
+// the printer says how many, and how far behind it is when it falls behind.
+class ClientConsole {
+    static final int CAPACITY = 10000;
+    // most lines printed at once
+    static final int BATCH = 512;
+    // nanoseconds between two backlog notices
+    private static final long NOTICE_INTERVAL = 1000000000L;
+
+    private final ArrayDeque<String> lines = new ArrayDeque<String>();
+    private final int capacity;
+    private final PrintStream out;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition empty = lock.newCondition();
+    // lines skipped since the printer last said so
+    private long skipped;
+    private boolean printing;
+    private long lastNotice;
+    private final Thread printer;
+
+    ClientConsole(PrintStream out, int capacity) {
+        this.out = out;
+        this.capacity = capacity;
+        printer = new Thread(this::print, "console");
+        printer.setDaemon(true);
+        printer.start();
+    }
+
+    // queue a line, never waiting for the console
+    void println(String line) {
+        lock.lock();
+        try {
+            if (lines.size() >= capacity) {
+                lines.poll();
+                skipped++;
+            }
+            lines.add(line);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // wait up to timeout milliseconds for what is queued to be printed
+    void flush(long timeout) throws InterruptedException {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        lock.lock();
+        try {
+            while ((!lines.isEmpty() || printing) && nanos > 0)
+                nanos = empty.awaitNanos(nanos);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void print() {
+        StringBuilder batch = new StringBuilder();
+        while (true) {
+            int backlog;
+            long lost;
+            lock.lock();
+            try {
+                printing = false;
+                if (lines.isEmpty())
+                    empty.signalAll();
+                while (lines.isEmpty())
+                    notEmpty.awaitUninterruptibly();
+                printing = true;
+                for (int i = 0; i < BATCH && !lines.isEmpty(); i++)
+                    batch.append(lines.poll()).append('\n');
+                backlog = lines.size();
+                lost = skipped;
+                skipped = 0;
+            } finally {
+                lock.unlock();
+            }
+            if (lost > 0)
+                batch.append(" *** ").append(lost).append(" messages skipped, the console could not keep up *** \n");
+            long now = System.nanoTime();
+            if (backlog >= BATCH && now - lastNotice > NOTICE_INTERVAL) {
+                lastNotice = now;
+                batch.append(" *** ").append(backlog).append(" messages waiting to be shown *** \n");
+            }
+            batch.append("> ");
+            out.print(batch);
+            out.flush();
+            batch.setLength(0);
+        }
+    }
+}
@@ -0,0 +1,356 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// the link between the Servers of a cluster. Every node listens on its
+// cluster port and dials the peers it was given, each pair of nodes has to be
+// connected by at least one of them listing the other. Nodes talk in
+// FrameCodec frames, a node first says its name and a random challenge, and
+// answers the challenge of the other with an HMAC of the shared secret: the
+// secret itself never goes on the wire. Then it gossips the users logged in
+// on it: all of them when a link comes up, then each join and leave. The
+// messages broadcast in a room and the private messages to a user of another
+// node are relayed to the nodes once, already timestamped, and never relayed
+// further.
+class ClusterNode {
+    // frame types between nodes, payload fields are separated by '\0'
+    static final int NODE = 80, PRESENCE = 81, ABSENCE = 82, ROOM = 83, USER = 84, AUTH = 85;
+    // a peer that falls this far behind is disconnected, it resyncs on redial
+    private static final long PEER_HIGH = 64 * 1024 * 1024, PEER_LOW = 16 * 1024 * 1024;
+    // how long a dialer waits before trying a peer again
+    private static final long REDIAL_MILLIS = 1000;
+
+    // a user logged in on another node
+    static class RemoteUser {
+        final String node;
+        final String date;
+
+        RemoteUser(String node, String date) {
+            this.node = node;
+            this.date = date;
+        }
+    }
+
+    private final Server server;
+    // the name of this node, unique in the cluster
+    final String name;
+    private final String host;
+    private final int port;
+    // what the nodes of the cluster share, see proof
+    private final byte[] secret;
+    private final SecureRandom random = new SecureRandom();
+    private final List<String> peerAddresses;
+    // the connected nodes by name
+    private final ConcurrentHashMap<String, Peer> peers = new ConcurrentHashMap<String, Peer>();
+    // the node name found behind each address we dial
+    private final ConcurrentHashMap<String, String> names = new ConcurrentHashMap<String, String>();
+    // the users of the other nodes by username
+    private final ConcurrentHashMap<String, RemoteUser> remoteUsers = new ConcurrentHashMap<String, RemoteUser>();
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running;
+
+    ClusterNode(Server server, ServerOptions options) {
+        this.server = server;
+        this.host = options.clusterHost;
+        this.port = options.clusterPort;
+        this.secret = options.clusterSecret == null ? null
+                : options.clusterSecret.getBytes(StandardCharsets.UTF_8);
+        this.name = options.nodeName != null ? options.nodeName : hostName() + ":" + port;
+        this.peerAddresses = options.peers;
+    }
+
+    // listen for the other nodes and start dialing the peers
+    void start() throws IOException {
+        // anyone reaching the port could speak for users otherwise
+        if (secret == null)
+            throw new IOException("a cluster needs --cluster-secret");
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(host, port));
+        running = true;
+        daemon(this::accept, "cluster-acceptor");
+        for (String address : peerAddresses)
+            daemon(() -> dial(address), "cluster-dialer-" + address);
+        server.display("Cluster node " + name + " listening on " + host + ":" + port + ".");
+    }
+
+    void stop() {
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+        }
+        for (Peer p : peers.values())
+            p.close();
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "localhost";
+        }
+    }
+
+    private static void daemon(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                daemon(() -> new Peer(channel, false).serve(), "cluster-peer");
+            } catch (IOException e) {
+                if (running)
+                    server.display("Exception accepting a cluster node: " + e);
+            }
+        }
+    }
+
+    // keep a link to the node at host:port, unless it dialed us
+    private void dial(String address) {
+        int colon = address.lastIndexOf(':');
+        InetSocketAddress to = new InetSocketAddress(address.substring(0, colon),
+                Integer.parseInt(address.substring(colon + 1)));
+        while (running) {
+            String known = names.get(address);
+            if (known == null || !peers.containsKey(known)) {
+                try {
+                    Peer p = new Peer(SocketChannel.open(to), true);
+                    p.address = address;
+                    p.serve();
+                } catch (IOException e) {
+                    // not up yet
+                }
+            }
+            try {
+                Thread.sleep(REDIAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // a link finished its handshake, false if we keep another one to that node.
+    // When two nodes dialed each other both keep the link dialed by the node
+    // with the smaller name.
+    private synchronized boolean register(Peer p) {
+        Peer old = peers.get(p.name);
+        if (old != null) {
+            if (p.dialed != name.compareTo(p.name) < 0)
+                return false;
+            old.close();
+        }
+        peers.put(p.name, p);
+        if (old == null)
+            server.display("Cluster node " + p.name + " connected.");
+        // everyone logged in here, later joins and leaves follow on the same link
+        for (ChatConnection c : server.connections())
+            p.send(presence(c));
+        return true;
+    }
+
+    // a link went away, forget the users of its node unless another link took over
+    private synchronized void unregister(Peer p) {
+        if (p.name != null && peers.remove(p.name, p)) {
+            remoteUsers.values().removeIf(u -> u.node.equals(p.name));
+            server.presence.changed();
+            server.display("Cluster node " + p.name + " disconnected.");
+        }
+    }
+
+    // the answer to a challenge for the node called node: it knows the
+    // secret, and it cannot be replayed on another link nor sent back
+    private String proof(String challenge, String node) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            byte[] digest = mac.doFinal((challenge + "\0" + node).getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static ByteBuffer frame(int type, String... fields) {
+        return ByteBuffer.wrap(FrameCodec.encode(type, String.join("\0", fields)));
+    }
+
+    private static ByteBuffer presence(ChatConnection c) {
+        return frame(PRESENCE, c.getUsername(), c.getDate());
+    }
+
+    private void sendAll(ByteBuffer frame) {
+        for (Peer p : peers.values())
+            p.send(frame.duplicate());
+    }
+
+    // a user logged in on this node
+    synchronized void joined(ChatConnection c) {
+        sendAll(presence(c));
+    }
+
+    // a user of this node left
+    synchronized void left(String username) {
+        sendAll(frame(ABSENCE, username));
+    }
+
+    // relay a message broadcast in a room of this node
+    void relayRoom(String room, String messageLf) {
+        if (!peers.isEmpty())
+            sendAll(frame(ROOM, room, messageLf));
+    }
+
+    // relay a private message to the node of username, false if it is not on any
+    boolean relayTo(String username, String messageLf) {
+        RemoteUser u = remoteUsers.get(username);
+        Peer p = u == null ? null : peers.get(u.node);
+        if (p == null)
+            return false;
+        p.send(frame(USER, username, messageLf));
+        return true;
+    }
+
+    boolean isRemote(String username) {
+        return remoteUsers.containsKey(username);
+    }
+
+    Map<String, RemoteUser> remoteUsers() {
+        return remoteUsers;
+    }
+
+    // act on a frame from the node called from
+    private void receive(String from, ChatMessage cm) throws StreamCorruptedException {
+        String[] f = cm.getMessage().split("\0", 2);
+        if ((cm.getType() == ROOM || cm.getType() == USER) && f.length < 2)
+            throw new StreamCorruptedException("bad cluster frame");
+        switch (cm.getType()) {
+            case PRESENCE:
+                remoteUsers.put(f[0], new RemoteUser(from, f.length > 1 ? f[1] : "\n"));
+                server.presence.changed();
+                break;
+            case ABSENCE:
+                remoteUsers.computeIfPresent(f[0], (k, u) -> u.node.equals(from) ? null : u);
+                server.presence.changed();
+                break;
+            case ROOM:
+                server.deliver(f[0], f[1]);
+                break;
+            case USER:
+                server.deliverTo(f[0], f[1]);
+                break;
+            default:
+                throw new StreamCorruptedException("unexpected cluster frame " + cm.getType());
+        }
+    }
+
+    // one link to another node, read on the thread that calls serve and
+    // written by its own writer thread
+    class Peer {
+        private final SocketChannel channel;
+        // true if we dialed it
+        final boolean dialed;
+        // the address we dialed, null if it dialed us
+        String address;
+        // the name it sent in its NODE frame
+        String name;
+        private final Outbox outbox = new Outbox(PEER_HIGH, PEER_LOW, Outbox.DISCONNECT);
+        private Thread writer;
+        private volatile boolean closed;
+
+        Peer(SocketChannel channel, boolean dialed) {
+            this.channel = channel;
+            this.dialed = dialed;
+        }
+
+        // handshake, then read frames until the link goes
+        void serve() {
+            try {
+                channel.socket().setTcpNoDelay(true);
+                byte[] bytes = new byte[16];
+                random.nextBytes(bytes);
+                String challenge = Base64.getEncoder().encodeToString(bytes);
+                write(frame(NODE, ClusterNode.this.name, challenge));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(channel.socket().getInputStream()));
+                ChatMessage cm = FrameCodec.read(in);
+                String[] f = cm.getMessage().split("\0", 2);
+                if (cm.getType() != NODE || f.length < 2)
+                    throw new StreamCorruptedException("expected the node name");
+                if (f[0].equals(ClusterNode.this.name))
+                    throw new StreamCorruptedException("another node is called " + f[0]);
+                write(frame(AUTH, proof(f[1], ClusterNode.this.name)));
+                cm = FrameCodec.read(in);
+                if (cm.getType() != AUTH || !MessageDigest.isEqual(proof(challenge, f[0]).getBytes(),
+                        cm.getMessage().getBytes()))
+                    throw new StreamCorruptedException(f[0] + " does not know the cluster secret");
+                if (address != null)
+                    names.put(address, f[0]);
+                writer = new Thread(this::drain, "cluster-writer-" + f[0]);
+                writer.setDaemon(true);
+                writer.start();
+                name = f[0];
+                if (!register(this))
+                    return;
+                while (!closed)
+                    receive(name, FrameCodec.read(in));
+            } catch (IOException e) {
+                // a link that lost to the other one between the same nodes goes quietly
+                Peer kept = name == null ? null : peers.get(name);
+                if (!closed && running && (kept == null || kept == this))
+                    server.display("Exception on the link to cluster node " + (name != null ? name
+                            : address != null ? address : channel.socket().getRemoteSocketAddress()) + ": " + e);
+            } finally {
+                close();
+                unregister(this);
+            }
+        }
+
+        // write a frame of the handshake, before the writer starts
+        private void write(ByteBuffer frame) throws IOException {
+            while (frame.hasRemaining())
+                channel.write(frame);
+        }
+
+        // queue a frame for the writer
+        void send(ByteBuffer frame) {
+            if (!closed && !outbox.offer(frame)) {
+                server.display("Cluster node " + name + " is not reading, disconnecting.");
+                close();
+            }
+        }
+
+        private void drain() {
+            ByteBuffer[] batch = new ByteBuffer[Outbox.BATCH];
+            try {
+                while (!closed) {
+                    int n = outbox.take(batch, 64 * 1024, 0);
+                    while (batch[n - 1].hasRemaining())
+                        channel.write(batch, 0, n);
+                }
+            } catch (InterruptedException | IOException e) {
+                close();
+            }
+        }
+
+        void close() {
+            closed = true;
+            if (writer != null && writer != Thread.currentThread())
+                writer.interrupt();
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+import java.nio.ByteBuffer;
+
+// a String to send, encoded at most once per protocol however many Clients
+// it goes to. Each Client gets a duplicate of the same read-only buffer: the
+// bytes are shared, only the position is its own.
+class EncodedMessage {
+    final String text;
+    // direct buffers are written to a socket without another copy, worth
+    // their allocation when a message goes to many Clients
+    private final boolean direct;
+    // the room and the number of a room message, see ChatRoom.publish, 0
+    // for the others
+    final String room;
+    final long seq;
+    private volatile ByteBuffer binary, serial, deflated, sequenced, sequencedDeflated, webSocket;
+
+    EncodedMessage(String text, boolean direct) {
+        this(text, direct, null, 0);
+    }
+
+    EncodedMessage(String text, boolean direct, String room, long seq) {
+        this.text = text;
+        this.direct = direct;
+        this.room = room;
+        this.seq = seq;
+    }
+
+    // the bytes for one Client, of the binary protocol or of serialization
+    ByteBuffer frame(boolean binaryProtocol) {
+        ByteBuffer frame = binaryProtocol ? binary : serial;
+        if (frame == null) {
+            // two threads may both encode it, either result will do
+            frame = wrap(binaryProtocol ? FrameCodec.encode(FrameCodec.TEXT, text) : SerialEncoder.encode(text));
+            if (binaryProtocol)
+                binary = frame;
+            else
+                serial = frame;
+        }
+        return frame.duplicate();
+    }
+
+    // the bytes for a Client that agreed to compression: every connection
+    // deflates with the same threshold, so the first one to need it
+    // compresses it for all the others
+    ByteBuffer frame(boolean binaryProtocol, FrameDeflater deflater) {
+        if (deflater == null || !binaryProtocol)
+            return frame(binaryProtocol);
+        ByteBuffer frame = deflated;
+        if (frame == null)
+            deflated = frame = wrap(deflater.encode(FrameCodec.TEXT, text));
+        return frame.duplicate();
+    }
+
+    // the bytes for a binary Client that reads sequence numbers, a SEQ frame
+    // if this is a room message
+    ByteBuffer frame(boolean binaryProtocol, FrameDeflater deflater, boolean withSeq) {
+        if (!withSeq || seq == 0 || !binaryProtocol)
+            return frame(binaryProtocol, deflater);
+        ByteBuffer frame = deflater == null ? sequenced : sequencedDeflated;
+        if (frame == null) {
+            String payload = FrameCodec.seq(room, seq, text);
+            if (deflater == null)
+                sequenced = frame = wrap(FrameCodec.encode(FrameCodec.SEQ, payload));
+            else
+                sequencedDeflated = frame = wrap(deflater.encode(FrameCodec.SEQ, payload));
+        }
+        return frame.duplicate();
+    }
+
+    // the bytes for a browser, one text frame, see WebSocketGateway
+    ByteBuffer webSocketFrame() {
+        ByteBuffer frame = webSocket;
+        if (frame == null)
+            webSocket = frame = wrap(WebSocketGateway.textFrame(text));
+        return frame.duplicate();
+    }
+
+    private ByteBuffer wrap(byte[] bytes) {
+        if (!direct)
+            return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        return buffer.asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,156 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+
+// the compact binary protocol, the alternative to Java serialization.
+// It is negotiated at connect time: the Client reads the ObjectStream header
+// the server always sends first, then sends HELLO (MAGIC and a version byte)
+// instead of its own header. The server answers with the HELLO of the lower
+// of the two versions, a newer Client speaks the version of an older
+// server, and from then on both sides exchange frames of
+//   int length | byte type | UTF-8 payload
+// where length counts the type byte and the payload. A client whose HELLO
+// is not answered falls back to Java serialization.
+class FrameCodec {
+    static final byte[] MAGIC = { 'C', 'H', 'A', 'T' };
+    static final int VERSION = 4;
+    // frame types besides the ChatMessage ones: the username sent once at
+    // login and the Strings the server sends to the client
+    static final int LOGIN = 64, TEXT = 65;
+    // compression, offered by the client after LOGIN with COMPRESS "deflate"
+    // and accepted by the server answering the same ("" if it refuses).
+    // After that either side may send, instead of a big frame,
+    //   int length | DEFLATED | byte type | deflated UTF-8 payload
+    // see FrameDeflater
+    static final int COMPRESS = 66, DEFLATED = 67;
+    static final String DEFLATE = "deflate";
+    // since VERSION 2 the messages of a room come numbered, in frames of
+    //   SEQ: room \0 sequence number \0 text
+    // and a client coming back may send, before LOGIN,
+    //   RESUME: room \0 last sequence number it got (0 if none)
+    // to get back in the room with what it missed, see ChatRoom. Its login
+    // replaces the connection it left behind, which the server may not
+    // know to be gone yet.
+    static final int SEQ = 68, RESUME = 69;
+    // since VERSION 3 the server sends PING to a client it has not heard
+    // from for a while and the client answers PONG, with the same payload,
+    // see Heartbeat
+    static final int PING = 70, PONG = 71;
+    // since VERSION 3 a login the server refuses is answered with
+    //   REFUSED: why
+    // before it closes the connection, and the client does not come back
+    static final int REFUSED = 72;
+    // since VERSION 4 the server sends a client that logged in
+    //   TOKEN: a random token
+    // and the RESUME of a later connection has to show it,
+    //   RESUME: room \0 last sequence number \0 token
+    // to replace the connection it left behind: saying the name is not
+    // enough to take over the session of someone else
+    static final int TOKEN = 73;
+    // biggest frame we accept
+    static final int MAX_FRAME = 16 * 1024 * 1024;
+
+    // MAGIC followed by the version
+    static byte[] hello() {
+        return hello(VERSION);
+    }
+
+    static byte[] hello(int version) {
+        byte[] hello = Arrays.copyOf(MAGIC, MAGIC.length + 1);
+        hello[MAGIC.length] = (byte) version;
+        return hello;
+    }
+
+    // the payload of a SEQ frame, or of a RESUME one without text
+    static String seq(String room, long seq, String text) {
+        return text == null ? room + "\0" + seq : room + "\0" + seq + "\0" + text;
+    }
+
+    // the room of a SEQ or RESUME payload
+    static String roomOf(String payload) {
+        int end = payload.indexOf('\0');
+        return end < 0 ? payload : payload.substring(0, end);
+    }
+
+    // the sequence number of a SEQ or RESUME payload, after its room
+    static long seqOf(String payload) throws StreamCorruptedException {
+        int start = payload.indexOf('\0') + 1;
+        int end = payload.indexOf('\0', start);
+        try {
+            return Long.parseLong(payload.substring(start, end < 0 ? payload.length() : end));
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            throw new StreamCorruptedException("bad sequence number");
+        }
+    }
+
+    // the text of a SEQ payload or the token of a RESUME one, after its
+    // room and sequence number, "" if there is none
+    static String textOf(String payload) {
+        int start = payload.indexOf('\0');
+        int end = start < 0 ? -1 : payload.indexOf('\0', start + 1);
+        return end < 0 ? "" : payload.substring(end + 1);
+    }
+
+    // a whole frame, ready to be written
+    static byte[] encode(int type, String payload) {
+        byte[] text = payload.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(5 + text.length);
+        frame.putInt(1 + text.length).put((byte) type).put(text);
+        return frame.array();
+    }
+
+    static void write(DataOutputStream out, int type, String payload) throws IOException {
+        out.write(encode(type, payload));
+        out.flush();
+    }
+
+    // block until a whole frame is read
+    static ChatMessage read(DataInputStream in) throws IOException {
+        return read(in, null);
+    }
+
+    // the same, inflating DEFLATED frames once compression is agreed
+    static ChatMessage read(DataInputStream in, Inflater inflater) throws IOException {
+        int length = in.readInt();
+        if (length < 1 || length > MAX_FRAME)
+            throw new StreamCorruptedException("bad frame length " + length);
+        int type = in.readUnsignedByte();
+        byte[] text = new byte[length - 1];
+        in.readFully(text);
+        if (type == DEFLATED && inflater != null)
+            return FrameDeflater.inflate(inflater, text, 0, text.length);
+        return new ChatMessage(type, new String(text, StandardCharsets.UTF_8));
+    }
+
+    // the length of the frame at the position of buf with its length field,
+    // or -1 if it is not complete yet
+    static int frameLength(ByteBuffer buf) throws StreamCorruptedException {
+        if (buf.remaining() < 4)
+            return -1;
+        int length = buf.getInt(buf.position());
+        if (length < 1 || length > MAX_FRAME)
+            throw new StreamCorruptedException("bad frame length " + length);
+        return buf.remaining() < 4 + length ? -1 : 4 + length;
+    }
+
+    // consume the complete frame at the position of buf
+    static ChatMessage decode(ByteBuffer buf) throws StreamCorruptedException {
+        return decode(buf, null);
+    }
+
+    static ChatMessage decode(ByteBuffer buf, Inflater inflater) throws StreamCorruptedException {
+        int length = buf.getInt();
+        int type = buf.get() & 0xff;
+        if (type == DEFLATED && inflater != null) {
+            int at = buf.position();
+            buf.position(at + length - 1);
+            return FrameDeflater.inflate(inflater, buf.array(), buf.arrayOffset() + at, length - 1);
+        }
+        String text = new String(buf.array(), buf.arrayOffset() + buf.position(), length - 1,
+                StandardCharsets.UTF_8);
+        buf.position(buf.position() + length - 1);
+        return new ChatMessage(type, text);
+    }
+}
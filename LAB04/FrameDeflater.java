@@ -0,0 +1,82 @@
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.*;
+
+// the compression of one connection, see FrameCodec.COMPRESS: frames with a
+// payload of threshold bytes or more are deflated (raw deflate, fastest
+// level) when that makes them smaller. The Deflater and the output buffer
+// are kept for the life of the connection and reset between frames, each
+// frame is compressed on its own so a deflated broadcast can be shared.
+class FrameDeflater {
+    // below this many payload bytes compression saves less than it costs
+    static final int DEFAULT_THRESHOLD = 1024;
+    private final int threshold;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    private byte[] out = new byte[8192];
+
+    FrameDeflater(int threshold) {
+        this.threshold = threshold;
+    }
+
+    // a whole frame, ready to be written, deflated if worth it
+    byte[] encode(int type, String payload) {
+        byte[] text = payload.getBytes(StandardCharsets.UTF_8);
+        if (text.length < threshold)
+            return plain(type, text);
+        int length;
+        // the writers of all the senders may compress for this connection
+        synchronized (this) {
+            deflater.reset();
+            deflater.setInput(text);
+            deflater.finish();
+            length = 0;
+            while (!deflater.finished()) {
+                if (length == out.length)
+                    out = Arrays.copyOf(out, out.length * 2);
+                length += deflater.deflate(out, length, out.length - length);
+            }
+            if (length >= text.length)
+                return plain(type, text);
+            ByteBuffer frame = ByteBuffer.allocate(6 + length);
+            frame.putInt(2 + length).put((byte) FrameCodec.DEFLATED).put((byte) type).put(out, 0, length);
+            return frame.array();
+        }
+    }
+
+    private static byte[] plain(int type, byte[] text) {
+        ByteBuffer frame = ByteBuffer.allocate(5 + text.length);
+        frame.putInt(1 + text.length).put((byte) type).put(text);
+        return frame.array();
+    }
+
+    // the ChatMessage in the payload of a DEFLATED frame: the inner type,
+    // then the deflated text, inflated with the inflater of the connection
+    static ChatMessage inflate(Inflater inflater, byte[] b, int off, int len) throws StreamCorruptedException {
+        if (len < 1)
+            throw new StreamCorruptedException("empty deflated frame");
+        int type = b[off] & 0xff;
+        inflater.reset();
+        inflater.setInput(b, off + 1, len - 1);
+        byte[] text = new byte[Math.min(FrameCodec.MAX_FRAME, Math.max(64, len * 4))];
+        int length = 0;
+        try {
+            while (!inflater.finished()) {
+                if (length == text.length) {
+                    // no more than a plain frame could carry
+                    if (text.length >= FrameCodec.MAX_FRAME)
+                        throw new StreamCorruptedException("deflated frame too big");
+                    text = Arrays.copyOf(text, Math.min(FrameCodec.MAX_FRAME, text.length * 2));
+                }
+                int n = inflater.inflate(text, length, text.length - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new StreamCorruptedException("truncated deflated frame");
+                length += n;
+            }
+        } catch (DataFormatException e) {
+            throw new StreamCorruptedException("bad deflated frame: " + e.getMessage());
+        }
+        return new ChatMessage(type, new String(text, 0, length, StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,15 @@
+// what the Server knows of the liveness of one connection, see Server.beat.
+// The connection marks it heard whenever it reads something, pongs
+// included, and the Server notes the time of each ChatMessage. Every
+// heartbeat interval the Server looks: a connection not heard since the last
+// look is pinged, and reaped at the next look if it still has not answered.
+class Heartbeat {
+    // something was read since the last look
+    volatile boolean heard = true;
+    // when the last ChatMessage came, in System.nanoTime()
+    volatile long lastActive = System.nanoTime();
+    // pinged and not heard since, only used by the thread of the TimerWheel
+    boolean pinged;
+    // the next look, to cancel when the connection goes
+    volatile TimerWheel.Timeout timeout;
+}
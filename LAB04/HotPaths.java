@@ -0,0 +1,318 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/*
+ * Microbenchmarks of the server hot paths: encoding and decoding a message,
+ * parsing and timestamping it, the fan-out of a broadcast against the room size, the
+ * lookup of a private message and the WHOISIN list against the user count.
+ * > java HotPaths [iteration ms] [results file] [benchmark prefix]
+ * e.g. > java HotPaths 1000 hotpaths.json fanout
+ * Each benchmark is warmed up, then measured over 5 iterations, the table
+ * goes to the console and the results to the file as JSON, in the format
+ * JMH writes, so runs can be compared when the server changes.
+ */
+public class HotPaths {
+    // where the results go, System.out is silenced for the broadcasts
+    private static final PrintStream out = System.out;
+    private static final int WARMUPS = 3, ITERATIONS = 5;
+    // keeps the results alive so the JIT cannot drop the work
+    static volatile long sink;
+
+    // one benchmark: do ops operations and return something of the result
+    interface Bench {
+        long run(int ops) throws Exception;
+    }
+
+    private static class Result {
+        final String name, param;
+        final double score, error;
+
+        Result(String name, String param, double score, double error) {
+            this.name = name;
+            this.param = param;
+            this.score = score;
+            this.error = error;
+        }
+    }
+
+    private static final List<Result> results = new ArrayList<Result>();
+    private static long iterationNanos;
+    private static String prefix;
+
+    public static void main(String[] args) throws Exception {
+        iterationNanos = (args.length > 0 ? Long.parseLong(args[0]) : 1000) * 1000000;
+        String file = args.length > 1 ? args[1] : "hotpaths.json";
+        prefix = args.length > 2 ? args[2] : "";
+        out.printf("%-28s %10s %14s %12s%n", "benchmark", "param", "ns/op", "error");
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        String text = "alice: the quick brown fox jumps over the lazy dog";
+        String line = "12:00:00 " + text + "\n";
+        bench("encode.serial", "", ops -> {
+            long n = 0;
+            for (int i = 0; i < ops; i++)
+                n += SerialEncoder.encode(line).length;
+            return n;
+        });
+        // what writeMsg cost for each recipient before messages were encoded once
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bytes);
+        bench("encode.objectStream", "", ops -> {
+            for (int i = 0; i < ops; i++) {
+                bytes.reset();
+                oos.writeObject(line);
+                oos.reset();
+                oos.flush();
+            }
+            return bytes.size();
+        });
+        bench("encode.frame", "", ops -> {
+            long n = 0;
+            for (int i = 0; i < ops; i++)
+                n += FrameCodec.encode(FrameCodec.TEXT, line).length;
+            return n;
+        });
+        // a big message, as it goes to a Client that agreed to compression
+        StringBuilder page = new StringBuilder();
+        while (page.length() < 4096)
+            page.append(line);
+        String big = page.toString();
+        FrameDeflater deflater = new FrameDeflater(FrameDeflater.DEFAULT_THRESHOLD);
+        bench("encode.deflate", "", ops -> {
+            long n = 0;
+            for (int i = 0; i < ops; i++)
+                n += deflater.encode(FrameCodec.TEXT, big).length;
+            return n;
+        });
+
+        // a client stream of ChatMessages, read 1024 at a time
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        try (ObjectOutputStream client = new ObjectOutputStream(stream)) {
+            for (int i = 0; i < 1024; i++)
+                client.writeObject(new ChatMessage(ChatMessage.MESSAGE, text));
+        }
+        byte[] serial = stream.toByteArray();
+        bench("decode.serial", "", ops -> {
+            long n = 0;
+            for (int done = 0; done < ops;) {
+                ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serial));
+                for (int i = 0; i < 1024 && done < ops; i++, done++)
+                    n += ((ChatMessage) in.readObject()).getType();
+            }
+            return n;
+        });
+        ByteBuffer frame = ByteBuffer.wrap(FrameCodec.encode(ChatMessage.MESSAGE, text));
+        bench("decode.frame", "", ops -> {
+            long n = 0;
+            for (int i = 0; i < ops; i++) {
+                frame.rewind();
+                n += FrameCodec.decode(frame).getMessage().length();
+            }
+            return n;
+        });
+        // what broadcast did first with every message, before MessageParser
+        bench("parse.split", "", ops -> {
+            long n = 0;
+            for (int i = 0; i < ops; i++) {
+                String[] w = text.split(" ", 3);
+                n += w[1].charAt(0) == '@' ? 1 : w.length;
+            }
+            return n;
+        });
+        bench("parse.indexes", "", ops -> {
+            long n = 0;
+            for (int i = 0; i < ops; i++)
+                n += MessageParser.targetStart(text) + MessageParser.senderEnd(text);
+            return n;
+        });
+        // the timestamp of every message, before and after CachedClock
+        java.text.SimpleDateFormat sdf = new java.text.SimpleDateFormat("HH:mm:ss");
+        bench("clock.simpleDateFormat", "", ops -> {
+            long n = 0;
+            for (int i = 0; i < ops; i++) {
+                synchronized (sdf) {
+                    n += sdf.format(new Date()).length();
+                }
+            }
+            return n;
+        });
+        CachedClock clock = new CachedClock();
+        bench("clock.cached", "", ops -> {
+            long n = 0;
+            for (int i = 0; i < ops; i++)
+                n += clock.now().length();
+            return n;
+        });
+        Outbox outbox = new Outbox(Long.MAX_VALUE, Long.MAX_VALUE, Outbox.DISCONNECT);
+        ByteBuffer[] batch = new ByteBuffer[Outbox.BATCH];
+        EncodedMessage encoded = new EncodedMessage(line, false);
+        bench("outbox.offerTake", "", ops -> {
+            long n = 0;
+            for (int i = 0; i < ops; i++) {
+                outbox.offer(encoded.frame(false));
+                n += outbox.take(batch, Long.MAX_VALUE, 0);
+            }
+            return n;
+        });
+
+        // a message to a whole room, against the room size
+        for (int size : new int[] { 1, 10, 100, 1000, 10000 }) {
+            if (!"fanout".startsWith(prefix))
+                break;
+            Server server = new Server(0);
+            Member sender = populate(server, size);
+            ChatMessage cm = new ChatMessage(ChatMessage.MESSAGE, "the quick brown fox");
+            bench("fanout", Integer.toString(size), ops -> {
+                for (int i = 0; i < ops; i++)
+                    server.handle(sender, cm);
+                return sender.bytes;
+            });
+        }
+        // a private message, against the number of users
+        for (int users : new int[] { 10, 100, 1000, 10000 }) {
+            if (!"mention".startsWith(prefix))
+                break;
+            Server server = new Server(0);
+            Member sender = populate(server, users);
+            ChatMessage cm = new ChatMessage(ChatMessage.MESSAGE, "@user" + (users / 2) + " psst");
+            bench("mention", Integer.toString(users), ops -> {
+                for (int i = 0; i < ops; i++)
+                    server.handle(sender, cm);
+                return sender.bytes;
+            });
+        }
+        // the list of the users, against the number of users
+        for (int users : new int[] { 10, 100, 1000, 10000 }) {
+            if (!"whoisin".startsWith(prefix))
+                break;
+            Server server = new Server(0);
+            Member sender = populate(server, users);
+            ChatMessage cm = new ChatMessage(ChatMessage.WHOISIN, "");
+            bench("whoisin", Integer.toString(users), ops -> {
+                for (int i = 0; i < ops; i++)
+                    server.handle(sender, cm);
+                return sender.bytes;
+            });
+        }
+
+        try (PrintWriter json = new PrintWriter(new FileWriter(file))) {
+            json.println("[");
+            for (int i = 0; i < results.size(); i++) {
+                Result r = results.get(i);
+                json.printf(Locale.ROOT,
+                        "  {\"benchmark\": \"HotPaths.%s\", \"mode\": \"avgt\", \"params\": {%s},"
+                                + " \"primaryMetric\": {\"score\": %.3f, \"scoreError\": %.3f, \"scoreUnit\": \"ns/op\"}}%s%n",
+                        r.name, r.param.isEmpty() ? "" : "\"size\": \"" + r.param + "\"", r.score, r.error,
+                        i < results.size() - 1 ? "," : "");
+            }
+            json.println("]");
+        }
+        out.println("results written to " + file);
+    }
+
+    // size logged in users of server, all in the lobby, returns the first
+    private static Member populate(Server server, int size) {
+        Member first = null;
+        for (int i = 0; i < size; i++) {
+            Member m = new Member("user" + i);
+            server.join(m);
+            if (first == null)
+                first = m;
+        }
+        return first;
+    }
+
+    // warm up, then measure ITERATIONS runs of about iterationNanos each
+    private static void bench(String name, String param, Bench b) throws Exception {
+        if (!name.startsWith(prefix))
+            return;
+        // enough operations for a call to take at least 10 ms
+        int ops = 1;
+        long t;
+        do {
+            long start = System.nanoTime();
+            sink += b.run(ops);
+            t = System.nanoTime() - start;
+            if (t < 10000000)
+                ops = (int) Math.min(Integer.MAX_VALUE / 2, ops * 2L);
+        } while (t < 10000000 && ops < Integer.MAX_VALUE / 2);
+        double[] score = new double[ITERATIONS];
+        for (int it = -WARMUPS; it < ITERATIONS; it++) {
+            long done = 0, start = System.nanoTime(), elapsed;
+            do {
+                sink += b.run(ops);
+                done += ops;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < iterationNanos);
+            if (it >= 0)
+                score[it] = (double) elapsed / done;
+        }
+        double mean = 0, var = 0;
+        for (double s : score)
+            mean += s / ITERATIONS;
+        for (double s : score)
+            var += (s - mean) * (s - mean) / (ITERATIONS - 1);
+        // about the 99.9% confidence interval for 5 iterations, as JMH reports
+        double error = 8.61 * Math.sqrt(var / ITERATIONS);
+        results.add(new Result(name, param, mean, error));
+        out.printf("%-28s %10s %14.1f %12.1f%n", name, param, mean, error);
+    }
+
+    // a logged in user that only counts what it is sent
+    private static class Member implements ChatConnection {
+        private static int ids;
+        private final int id = ++ids;
+        private final String username;
+        private volatile ChatRoom room;
+        long bytes;
+
+        Member(String username) {
+            this.username = username;
+        }
+
+        public int getClientId() {
+            return id;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public String getDate() {
+            return "\n";
+        }
+
+        public ChatRoom getRoom() {
+            return room;
+        }
+
+        public void setRoom(ChatRoom room) {
+            this.room = room;
+        }
+
+        public long getQueuedBytes() {
+            return 0;
+        }
+
+        public long getDroppedMessages() {
+            return 0;
+        }
+
+        // the encoding a real client pays for, without the socket
+        public boolean writeMsg(EncodedMessage msg) {
+            bytes += msg.frame(false).remaining();
+            return true;
+        }
+
+        public void finish() {
+        }
+
+        public boolean isClosed() {
+            return false;
+        }
+
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,75 @@
+import java.io.PrintStream;
+
+// counts of latencies in nanoseconds in log-linear buckets, as HdrHistogram
+// does: every power of two is split in 1024 buckets, so a value is kept
+// with a precision of about 0.1% whatever its size, in a fixed array.
+// Not thread safe, record from one thread and add() the histograms up.
+class LatencyHistogram {
+    private static final int SUB_BITS = 11, SUB = 1 << SUB_BITS, HALF = SUB / 2;
+    private final long[] counts = new long[(64 - SUB_BITS + 1) * HALF + HALF];
+    private long total;
+    private long max;
+
+    private static int index(long v) {
+        if (v < SUB)
+            return (int) v;
+        int shift = 64 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+        return (shift + 1) * HALF + (int) (v >>> shift) - HALF;
+    }
+
+    // the biggest value counted in the bucket at index
+    private static long highest(int index) {
+        if (index < SUB)
+            return index;
+        int shift = index / HALF - 1;
+        long sub = index % HALF + HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    void record(long nanos) {
+        nanos = Math.max(0, nanos);
+        counts[index(nanos)]++;
+        total++;
+        max = Math.max(max, nanos);
+    }
+
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++)
+            counts[i] += other.counts[i];
+        total += other.total;
+        max = Math.max(max, other.max);
+    }
+
+    long count() {
+        return total;
+    }
+
+    long max() {
+        return max;
+    }
+
+    // the value p percent of the recorded values are at or below
+    long percentile(double p) {
+        if (total == 0)
+            return 0;
+        long target = Math.max(1, (long) Math.ceil(p / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target)
+                return Math.min(highest(i), max);
+        }
+        return max;
+    }
+
+    // the percentile distribution in milliseconds, laid out like HdrHistogram's
+    void print(PrintStream out) {
+        out.printf("%12s %14s %10s %14s%n", "Value (ms)", "Percentile", "TotalCount", "1/(1-Percentile)");
+        for (double p : new double[] { 50, 90, 99, 99.9, 99.99, 100 }) {
+            long count = (long) Math.ceil(p / 100 * total);
+            out.printf("%12.3f %14.6f %10d %14s%n", percentile(p) / 1e6, p / 100, count,
+                    p < 100 ? String.format("%.2f", 100 / (100 - p)) : "");
+        }
+        out.printf("#[Max = %.3f, Total count = %d]%n", max / 1e6, total);
+    }
+}
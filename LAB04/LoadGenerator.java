@@ -0,0 +1,239 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * A headless load generator: connects simulated clients to a Server, each
+ * reading on its own virtual thread, and makes some of them send messages at
+ * a fixed total rate. Every message carries the time it was meant to be
+ * sent, so a late sender does not hide the delay (no coordinated omission),
+ * and every client that receives it records the latency.
+ * > java LoadGenerator [--name=value ...]
+ * e.g. > java LoadGenerator --port=1500 --clients=1000 --senders=10 --rate=2000 --seconds=30
+ * The clients and the server should not share a machine when sizing the tier.
+ */
+public class LoadGenerator {
+    private String host = "localhost";
+    private int port = 1500;
+    private int clients = 100;
+    private int senders = 10;
+    // messages per second from all the senders together
+    private int rate = 1000;
+    private int seconds = 10;
+    private boolean binary = true;
+    private String name = "load";
+
+    // one simulated Client
+    private class Connection {
+        final Socket socket;
+        final String username;
+        ObjectInputStream sInput;
+        ObjectOutputStream sOutput;
+        DataInputStream dInput;
+        DataOutputStream dOutput;
+        // only touched by the reader until it ends
+        final LatencyHistogram latencies = new LatencyHistogram();
+        Thread reader;
+
+        Connection(String username) throws IOException {
+            this.username = username;
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            if (binary) {
+                // the ObjectStream header, HELLO and its answer, then the login
+                dInput = new DataInputStream(in);
+                dOutput = new DataOutputStream(out);
+                dInput.readFully(new byte[4]);
+                dOutput.write(FrameCodec.hello());
+                dOutput.flush();
+                byte[] answer = new byte[FrameCodec.hello().length];
+                dInput.readFully(answer);
+                if (!Arrays.equals(answer, FrameCodec.hello()))
+                    throw new StreamCorruptedException("the server does not speak the binary protocol");
+                FrameCodec.write(dOutput, FrameCodec.LOGIN, username);
+            } else {
+                sInput = new ObjectInputStream(in);
+                sOutput = new ObjectOutputStream(out);
+                sOutput.writeObject(username);
+                sOutput.flush();
+            }
+        }
+
+        // from the sender and from the reader answering a PING
+        synchronized void send(String msg) throws IOException {
+            if (binary) {
+                FrameCodec.write(dOutput, ChatMessage.MESSAGE, msg);
+            } else {
+                sOutput.writeObject(new ChatMessage(ChatMessage.MESSAGE, msg));
+                sOutput.flush();
+                // the messages are never sent twice, do not keep them
+                sOutput.reset();
+            }
+        }
+
+        synchronized void pong(String payload) throws IOException {
+            FrameCodec.write(dOutput, FrameCodec.PONG, payload);
+        }
+
+        // read until the socket is closed, recording the latency of the load
+        // messages, "hh:mm:ss name<i>: <nanoTime>"
+        void read() {
+            String marker = " " + name;
+            try {
+                while (true) {
+                    String msg;
+                    if (binary) {
+                        ChatMessage cm = FrameCodec.read(dInput);
+                        msg = cm.getMessage();
+                        // a client that only reads still answers the heartbeat
+                        if (cm.getType() == FrameCodec.PING) {
+                            pong(msg);
+                            continue;
+                        }
+                        // room messages come numbered, the text is after the number
+                        if (cm.getType() == FrameCodec.SEQ)
+                            msg = msg.substring(msg.indexOf('\0', msg.indexOf('\0') + 1) + 1);
+                    } else
+                        msg = (String) sInput.readObject();
+                    int at = msg.indexOf(marker);
+                    int colon = at < 0 ? -1 : msg.indexOf(": ", at);
+                    if (colon < 0)
+                        continue;
+                    try {
+                        long sent = Long.parseLong(msg.substring(colon + 2).trim());
+                        latencies.record(System.nanoTime() - sent);
+                    } catch (NumberFormatException e) {
+                    }
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                // closed
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    // read one --name=value argument, false if it is not a known option
+    private boolean parse(String arg) {
+        if (!arg.startsWith("--") || arg.indexOf('=') < 0)
+            return false;
+        String key = arg.substring(2, arg.indexOf('='));
+        String value = arg.substring(arg.indexOf('=') + 1);
+        try {
+            switch (key) {
+                case "host":
+                    host = value;
+                    return true;
+                case "port":
+                    port = Integer.parseInt(value);
+                    return port > 0;
+                case "clients":
+                    clients = Integer.parseInt(value);
+                    return clients > 0;
+                case "senders":
+                    senders = Integer.parseInt(value);
+                    return senders > 0;
+                case "rate":
+                    rate = Integer.parseInt(value);
+                    return rate > 0;
+                case "seconds":
+                    seconds = Integer.parseInt(value);
+                    return seconds > 0;
+                case "protocol":
+                    binary = value.equals("binary");
+                    return binary || value.equals("serial");
+                case "name":
+                    name = value;
+                    return !value.isEmpty() && value.indexOf(' ') < 0;
+                default:
+                    return false;
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private void run() throws Exception {
+        senders = Math.min(senders, clients);
+        List<Connection> connections = new ArrayList<Connection>();
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            Connection c = new Connection(name + i);
+            c.reader = Thread.ofVirtual().name("reader-" + i).start(c::read);
+            connections.add(c);
+        }
+        System.out.printf("%d clients connected in %d ms%n", clients, (System.nanoTime() - start) / 1000000);
+        // let the join notices go by
+        Thread.sleep(1000);
+
+        // each sender keeps its share of the rate on its own schedule
+        long interval = 1000000000L * senders / rate;
+        long begin = System.nanoTime() + 10000000;
+        long end = begin + seconds * 1000000000L;
+        long[] sent = new long[senders];
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int s = 0; s < senders; s++) {
+            Connection c = connections.get(s);
+            int index = s;
+            threads.add(Thread.ofVirtual().name("sender-" + s).start(() -> {
+                // spread the senders over the interval
+                long next = begin + interval * index / senders;
+                try {
+                    while (next < end) {
+                        long wait = next - System.nanoTime();
+                        if (wait > 0)
+                            LockSupport.parkNanos(wait);
+                        // the time it was due, not the time it went out
+                        c.send(Long.toString(next));
+                        sent[index]++;
+                        next += interval;
+                    }
+                } catch (IOException e) {
+                    System.out.println(c.username + " could not send: " + e);
+                }
+            }));
+        }
+        for (Thread t : threads)
+            t.join();
+        long elapsed = System.nanoTime() - begin;
+        // let the last messages arrive
+        Thread.sleep(2000);
+        for (Connection c : connections)
+            c.close();
+        LatencyHistogram all = new LatencyHistogram();
+        for (Connection c : connections) {
+            c.reader.join();
+            all.add(c.latencies);
+        }
+
+        long total = Arrays.stream(sent).sum();
+        // a broadcast reaches its sender too
+        long expected = total * clients;
+        System.out.printf("sent %d messages in %.1f s (%.0f msgs/sec)%n", total, elapsed / 1e9, total * 1e9 / elapsed);
+        System.out.printf("delivered %d of %d (%.0f msgs/sec)%n", all.count(), expected, all.count() * 1e9 / elapsed);
+        System.out.printf("latency p50 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms%n",
+                all.percentile(50) / 1e6, all.percentile(99) / 1e6, all.percentile(99.9) / 1e6, all.max() / 1e6);
+        all.print(System.out);
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator load = new LoadGenerator();
+        for (String arg : args) {
+            if (!load.parse(arg)) {
+                System.out.println("Invalid option " + arg + ".");
+                System.out.println("Usage is: > java LoadGenerator [--host=name] [--port=n] [--clients=n]"
+                        + " [--senders=n] [--rate=msgs/sec] [--seconds=n] [--protocol=binary|serial] [--name=prefix]");
+                return;
+            }
+        }
+        load.run();
+    }
+}
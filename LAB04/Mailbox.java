@@ -0,0 +1,243 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// the private messages kept for users who were logged in nowhere, given to
+// them at their next login. It is a SegmentStore where the body of a record
+// is
+//   byte kind | long previous | byte userLength | user | UTF-8 text
+// where previous is the offset of the record before it for the same user, so
+// the messages of a user are a chain from its last one back. Only the end of
+// each chain, its length and how many of its messages each segment holds are
+// on the heap, not the messages. A TAKEN
+// record marks the messages of a user given to it, up to the one it points
+// to, and the index is rebuilt by reading the segments once at startup.
+// Only the users who logged in before get mail, their names are kept in the
+// users file of the directory. A user keeps at most its limit of messages
+// and at most maxUsers have some, the new ones are refused beyond that, and
+// the oldest segments are deleted to keep at most the configured number,
+// with the messages still in them.
+class Mailbox implements Closeable {
+    private static final byte MESSAGE = 0, TAKEN = 1;
+    // length, kind, previous and userLength, the trailing length
+    private static final int HEADER = 4 + 1 + 8 + 1, TRAILER = 4;
+    // most messages kept for one user, most users with messages
+    private final int limit;
+    private final int maxUsers;
+    // the users with messages waiting
+    private final HashMap<String, Box> boxes = new HashMap<String, Box>();
+    // how many messages of each user are waiting in a segment, by the offset
+    // the segment starts at: what the users lose when it is deleted
+    private final TreeMap<Long, HashMap<String, Integer>> live = new TreeMap<Long, HashMap<String, Integer>>();
+    // the users who logged in before, one per line in the users file
+    private final HashSet<String> known = new HashSet<String>();
+    private final Path users;
+    private final SegmentStore store;
+
+    private static class Box {
+        // its last message and how many are waiting
+        long last;
+        int count;
+        // the last message given to it, the chain stops there
+        long taken = -1;
+    }
+
+    // messages read for a user, see peek
+    static class Mail {
+        // oldest first
+        final List<String> messages;
+        // the offset of the last of them
+        final long last;
+        // how many are left in the mailbox after them
+        final int left;
+
+        private Mail(List<String> messages, long last, int left) {
+            this.messages = messages;
+            this.last = last;
+            this.left = left;
+        }
+    }
+
+    Mailbox(Path dir, int segmentSize, int maxSegments, int limit, int maxUsers, long fsyncMillis)
+            throws IOException {
+        this.limit = limit;
+        this.maxUsers = maxUsers;
+        store = new SegmentStore(dir, ".mbox", "mailbox", segmentSize, maxSegments, fsyncMillis, this::dropped);
+        for (SegmentStore.Segment s : store.segments())
+            index(s);
+        users = dir.resolve("users");
+        if (Files.exists(users))
+            known.addAll(Files.readAllLines(users, StandardCharsets.UTF_8));
+    }
+
+    // the chains of the records of a segment, the segments read oldest first
+    private void index(SegmentStore.Segment s) {
+        ByteBuffer map = s.map;
+        int pos = 0;
+        while (pos < s.end) {
+            String user = user(map, pos);
+            if (map.get(pos + 4) == TAKEN)
+                taken(user, map.getLong(pos + 5));
+            else
+                add(user, s.base, s.base + pos);
+            pos += 8 + map.getInt(pos);
+        }
+    }
+
+    // a message at offset in the segment starting at base
+    private void add(String user, long base, long offset) {
+        Box box = boxes.computeIfAbsent(user, k -> new Box());
+        box.last = offset;
+        box.count++;
+        live.computeIfAbsent(base, k -> new HashMap<String, Integer>()).merge(user, 1, Integer::sum);
+    }
+
+    // the messages of user up to the one at offset were given to it, all of
+    // them for an offset of -1
+    private void taken(String user, long offset) {
+        Box box = boxes.get(user);
+        if (box == null)
+            return;
+        if (offset < 0)
+            offset = box.last;
+        int given = 0;
+        for (long o : chain(box)) {
+            if (o <= offset) {
+                leave(user, store.segment(o).base);
+                given++;
+            }
+        }
+        if (offset >= box.last) {
+            boxes.remove(user);
+        } else {
+            box.taken = offset;
+            box.count -= given;
+        }
+    }
+
+    // a message of user in the segment starting at base is not waiting any more
+    private void leave(String user, long base) {
+        HashMap<String, Integer> counts = live.get(base);
+        if (counts == null)
+            return;
+        counts.computeIfPresent(user, (k, n) -> n > 1 ? n - 1 : null);
+        if (counts.isEmpty())
+            live.remove(base);
+    }
+
+    // the offsets of the messages waiting in a box, newest first
+    private List<Long> chain(Box box) {
+        List<Long> offsets = new ArrayList<Long>();
+        long offset = box.last;
+        SegmentStore.Segment s;
+        // the segment of an older message may have been deleted
+        while (offsets.size() < box.count && offset > box.taken && (s = store.segment(offset)) != null) {
+            offsets.add(offset);
+            offset = s.map.getLong((int) (offset - s.base) + 5);
+        }
+        return offsets;
+    }
+
+    private static String user(ByteBuffer map, int pos) {
+        byte[] user = new byte[map.get(pos + HEADER - 1) & 0xff];
+        map.get(pos + HEADER, user);
+        return new String(user, StandardCharsets.UTF_8);
+    }
+
+    // the oldest segments were deleted: their users lose the messages that
+    // were in them, and those left with none are forgotten
+    private void dropped(long first) {
+        for (Iterator<HashMap<String, Integer>> it = live.headMap(first).values().iterator(); it.hasNext();) {
+            for (Map.Entry<String, Integer> e : it.next().entrySet()) {
+                Box box = boxes.get(e.getKey());
+                if (box != null && (box.count -= e.getValue()) <= 0)
+                    boxes.remove(e.getKey());
+            }
+            it.remove();
+        }
+    }
+
+    // a user logged in, it gets mail from now on
+    synchronized void login(String user) throws IOException {
+        // a name on two lines would not be read back
+        if (user.indexOf('\n') >= 0 || user.indexOf('\r') >= 0 || !known.add(user))
+            return;
+        Files.write(users, (user + "\n").getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+    }
+
+    // whether a user logged in before
+    synchronized boolean isKnown(String user) {
+        return known.contains(user);
+    }
+
+    // keep a message for a user, false if its mailbox is full or too many
+    // users have mail already
+    synchronized boolean put(String user, String text) throws IOException {
+        Box box = boxes.get(user);
+        if (box != null ? box.count >= limit : boxes.size() >= maxUsers)
+            return false;
+        long offset = append(MESSAGE, box != null ? box.last : -1, user, text);
+        add(user, store.segment(offset).base, offset);
+        return true;
+    }
+
+    // the oldest messages kept for a user that add up to at most maxBytes
+    // (at least one), null if there are none. They stay in its mailbox until
+    // given says they were delivered, the others wait for the next login.
+    synchronized Mail peek(String user, long maxBytes) {
+        Box box = boxes.get(user);
+        if (box == null)
+            return null;
+        List<Long> offsets = chain(box);
+        ArrayList<String> found = new ArrayList<String>();
+        long bytes = 0;
+        long given = -1;
+        for (int i = offsets.size() - 1; i >= 0; i--) {
+            long offset = offsets.get(i);
+            SegmentStore.Segment s = store.segment(offset);
+            ByteBuffer map = s.map;
+            int pos = (int) (offset - s.base);
+            int length = map.getInt(pos);
+            byte[] text = new byte[length + 8 - HEADER - TRAILER - (map.get(pos + HEADER - 1) & 0xff)];
+            bytes += text.length;
+            if (bytes > maxBytes && !found.isEmpty())
+                break;
+            map.get(pos + length + 4 - text.length, text);
+            found.add(new String(text, StandardCharsets.UTF_8));
+            given = offset;
+        }
+        return found.isEmpty() ? null : new Mail(found, given, box.count - found.size());
+    }
+
+    // the messages of peek were delivered, take them out of the mailbox
+    synchronized void given(String user, Mail mail) throws IOException {
+        Box box = boxes.get(user);
+        // the segment may have been deleted in between
+        if (box == null || mail.last <= box.taken)
+            return;
+        append(TAKEN, mail.last, user, "");
+        taken(user, mail.last);
+    }
+
+    // how many users have messages waiting
+    synchronized int users() {
+        return boxes.size();
+    }
+
+    // add a record, returns its offset
+    private long append(byte kind, long previous, String user, String text) throws IOException {
+        byte[] userBytes = user.getBytes(StandardCharsets.UTF_8);
+        if (userBytes.length > 255)
+            throw new IOException("username too long for the mailbox");
+        byte[] header = ByteBuffer.allocate(HEADER - 4).put(kind).putLong(previous).put((byte) userBytes.length)
+                .array();
+        return store.append(header, userBytes, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void close() {
+        store.close();
+    }
+}
@@ -0,0 +1,39 @@
+// finds the parts of a "user: @target text" message by index, without
+// splitting it into new Strings. The message is private when its second
+// word starts with '@'; the target runs up to the next space and the text
+// follows it.
+class MessageParser {
+    // where the target of a private message starts (after the '@'), or -1
+    // if the message is for the room
+    static int targetStart(CharSequence message) {
+        int space = indexOf(message, ' ', 0);
+        if (space < 0 || space + 1 >= message.length() || message.charAt(space + 1) != '@')
+            return -1;
+        return space + 2;
+    }
+
+    // where the target starting at start ends
+    static int targetEnd(CharSequence message, int start) {
+        int space = indexOf(message, ' ', start);
+        return space < 0 ? message.length() : space;
+    }
+
+    // where the text of a private message whose target ends at end starts
+    static int textStart(CharSequence message, int end) {
+        return Math.min(end + 1, message.length());
+    }
+
+    // where the sender part ("user:") of a message ends
+    static int senderEnd(CharSequence message) {
+        int space = indexOf(message, ' ', 0);
+        return space < 0 ? message.length() : space;
+    }
+
+    private static int indexOf(CharSequence s, char c, int from) {
+        for (int i = from; i < s.length(); i++) {
+            if (s.charAt(i) == c)
+                return i;
+        }
+        return -1;
+    }
+}
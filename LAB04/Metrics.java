@@ -0,0 +1,171 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// the counters, gauges and histograms of a Server, written in the Prometheus
+// text format at /metrics of a small HTTP server. Counters and histograms
+// are LongAdders, cheap to update from every thread on the hot paths; gauges
+// are read when the metrics are scraped.
+class Metrics {
+    static class Counter {
+        private final LongAdder value = new LongAdder();
+
+        void inc() {
+            value.increment();
+        }
+
+        void add(long n) {
+            value.add(n);
+        }
+
+        long get() {
+            return value.sum();
+        }
+    }
+
+    // counts of observations in fixed buckets, in seconds
+    static class Histogram {
+        private final double[] bounds;
+        private final LongAdder[] counts;
+        private final DoubleAdder sum = new DoubleAdder();
+        private final LongAdder count = new LongAdder();
+
+        Histogram(double... bounds) {
+            this.bounds = bounds;
+            counts = new LongAdder[bounds.length];
+            for (int i = 0; i < counts.length; i++)
+                counts[i] = new LongAdder();
+        }
+
+        void observeNanos(long nanos) {
+            double seconds = nanos / 1e9;
+            for (int i = 0; i < bounds.length; i++) {
+                if (seconds <= bounds[i]) {
+                    counts[i].increment();
+                    break;
+                }
+            }
+            sum.add(seconds);
+            count.increment();
+        }
+    }
+
+    // the metrics of one name, each with its labels
+    private static class Family {
+        final String type, help;
+        final Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+
+        Family(String type, String help) {
+            this.type = type;
+            this.help = help;
+        }
+    }
+
+    private final Map<String, Family> families = new LinkedHashMap<String, Family>();
+    private HttpServer http;
+
+    private synchronized <T> T register(String name, String labels, String type, String help, T metric) {
+        Family f = families.computeIfAbsent(name, k -> new Family(type, help));
+        f.metrics.put(labels, metric);
+        return metric;
+    }
+
+    Counter counter(String name, String help) {
+        return counter(name, "", help);
+    }
+
+    // labels as Prometheus writes them, e.g. type="message"
+    Counter counter(String name, String labels, String help) {
+        return register(name, labels, "counter", help, new Counter());
+    }
+
+    void gauge(String name, String help, LongSupplier value) {
+        register(name, "", "gauge", help, value);
+    }
+
+    Histogram histogram(String name, String help, double... bounds) {
+        return register(name, "", "histogram", help, new Histogram(bounds));
+    }
+
+    // everything in the Prometheus text format
+    synchronized void write(StringBuilder out) {
+        for (Map.Entry<String, Family> e : families.entrySet()) {
+            String name = e.getKey();
+            Family f = e.getValue();
+            out.append("# HELP ").append(name).append(' ').append(f.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(f.type).append('\n');
+            for (Map.Entry<String, Object> m : f.metrics.entrySet()) {
+                String labels = m.getKey().isEmpty() ? "" : "{" + m.getKey() + "}";
+                Object metric = m.getValue();
+                if (metric instanceof Counter) {
+                    out.append(name).append(labels).append(' ').append(((Counter) metric).get()).append('\n');
+                } else if (metric instanceof LongSupplier) {
+                    out.append(name).append(labels).append(' ').append(((LongSupplier) metric).getAsLong())
+                            .append('\n');
+                } else {
+                    Histogram h = (Histogram) metric;
+                    long cumulative = 0;
+                    for (int i = 0; i < h.bounds.length; i++) {
+                        cumulative += h.counts[i].sum();
+                        out.append(name).append("_bucket{le=\"")
+                                .append(java.math.BigDecimal.valueOf(h.bounds[i]).stripTrailingZeros().toPlainString()).append("\"} ")
+                                .append(cumulative).append('\n');
+                    }
+                    out.append(name).append("_bucket{le=\"+Inf\"} ").append(h.count.sum()).append('\n');
+                    out.append(name).append("_sum ").append(h.sum.sum()).append('\n');
+                    out.append(name).append("_count ").append(h.count.sum()).append('\n');
+                }
+            }
+        }
+    }
+
+    // serve the metrics at http://host:port/metrics
+    void serve(String host, int port) throws IOException {
+        http = HttpServer.create(new InetSocketAddress(host, port), 0);
+        http.createContext("/metrics", exchange -> {
+            StringBuilder sb = new StringBuilder();
+            write(sb);
+            byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        http.start();
+    }
+
+    void stop() {
+        if (http != null)
+            http.stop(0);
+    }
+
+    // an InputStream that counts the bytes read through it
+    static class CountingInputStream extends FilterInputStream {
+        private final Counter bytes;
+
+        CountingInputStream(InputStream in, Counter bytes) {
+            super(in);
+            this.bytes = bytes;
+        }
+
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0)
+                bytes.inc();
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                bytes.add(n);
+            return n;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+ * Side by side comparison of the Server modes: for each mode a Server is
+ * started in this JVM, idle clients are connected until the target count (or
+ * the first failure), then one client sends timestamped messages that every
+ * other client receives.
+ * > java ModeComparison [connections] [messages] [modes]
+ * e.g. > java ModeComparison 2000 200 thread,virtual,nio
+ * The clients run on virtual threads in the same JVM, so the memory column
+ * counts their side too; the difference between the modes is the server's.
+ */
+public class ModeComparison {
+    // where the results go, System.out is silenced for the servers
+    private static final PrintStream out = System.out;
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        String[] modes = (args.length > 2 ? args[2] : "thread,virtual,nio").split(",");
+        out.printf("%-8s %12s %12s %14s %14s %10s %10s%n", "mode", "connected", "connect ms", "heap/conn B",
+                "threads/conn", "p50 us", "p99 us");
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        int port = 17500;
+        for (String mode : modes)
+            run(mode, port++, connections, messages);
+    }
+
+    private static void run(String mode, int port, int connections, int messages) throws Exception {
+        ServerOptions options = new ServerOptions();
+        if (!options.parse("--mode=" + mode))
+            throw new IllegalArgumentException("unknown mode " + mode);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long heapBefore = usedHeap();
+        int threadsBefore = threads.getThreadCount();
+        Server server = new Server(port, options);
+        Thread serverThread = new Thread(server::start, "server");
+        serverThread.start();
+        Thread.sleep(300);
+        // every receiver reports the latency of each message here
+        LinkedBlockingQueue<Long> latencies = new LinkedBlockingQueue<Long>();
+        List<Socket> sockets = new ArrayList<Socket>();
+        long start = System.nanoTime();
+        ObjectOutputStream sender = null;
+        try {
+            for (int i = 0; i < connections; i++) {
+                Socket socket = new Socket("localhost", port);
+                ObjectInputStream sInput = new ObjectInputStream(socket.getInputStream());
+                ObjectOutputStream sOutput = new ObjectOutputStream(socket.getOutputStream());
+                sOutput.writeObject("user" + i);
+                sockets.add(socket);
+                if (i == 0)
+                    sender = sOutput;
+                else
+                    Thread.ofVirtual().start(() -> receive(sInput, latencies));
+            }
+        } catch (IOException e) {
+            // the capacity limit of this mode
+        }
+        long connectMs = (System.nanoTime() - start) / 1000000;
+        Thread.sleep(500);
+        long heapPerConn = (usedHeap() - heapBefore) / Math.max(1, sockets.size());
+        double threadsPerConn = (double) (threads.getThreadCount() - threadsBefore) / Math.max(1, sockets.size());
+        // drop the join notices still on their way
+        Thread.sleep(500);
+        latencies.clear();
+
+        long[] samples = new long[0];
+        if (sender != null && sockets.size() > 1) {
+            int expected = messages * (sockets.size() - 1);
+            samples = new long[expected];
+            for (int m = 0; m < messages; m++) {
+                sender.writeObject(new ChatMessage(ChatMessage.MESSAGE, Long.toString(System.nanoTime())));
+                Thread.sleep(20);
+            }
+            int n = 0;
+            Long latency;
+            while (n < expected && (latency = latencies.poll(5, TimeUnit.SECONDS)) != null)
+                samples[n++] = latency;
+            samples = Arrays.copyOf(samples, n);
+            Arrays.sort(samples);
+        }
+
+        for (Socket socket : sockets)
+            socket.close();
+        server.stop();
+        serverThread.join(10000);
+        // let the threads of this mode die before the next one is measured
+        Thread.sleep(2000);
+        out.printf("%-8s %12d %12d %14d %14.2f %10d %10d%n", mode, sockets.size(), connectMs, heapPerConn,
+                threadsPerConn, percentile(samples, 50) / 1000, percentile(samples, 99) / 1000);
+    }
+
+    // read messages like "12:00:00 user0: <nanoTime>" until the socket closes
+    private static void receive(ObjectInputStream sInput, Queue<Long> latencies) {
+        try {
+            while (true) {
+                String msg = ((String) sInput.readObject()).trim();
+                int at = msg.indexOf("user0: ");
+                if (at >= 0)
+                    latencies.add(System.nanoTime() - Long.parseLong(msg.substring(at + 7)));
+            }
+        } catch (IOException | ClassNotFoundException | NumberFormatException e) {
+        }
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0)
+            return 0;
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p / 100 * sorted.length) - 1)];
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
@@ -0,0 +1,391 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.Inflater;
+
+// the Server mode that serves every client from a few selector event loops
+// with non-blocking reads and writes instead of one ClientThread per socket.
+// It speaks the same protocols as ClientThread, so the Client does not change.
+class NioServer {
+    // the server that owns the client list and the chat logic
+    private final Server server;
+    // the port number to listen for connection
+    private final int port;
+    // the startup options
+    private final ServerOptions options;
+    // the event loops the connections are spread over
+    private final EventLoop[] loops;
+    // the loop that gets the next connection
+    private int next;
+
+    NioServer(Server server, int port, ServerOptions options) {
+        this.server = server;
+        this.port = port;
+        this.options = options;
+        loops = new EventLoop[options.loops];
+    }
+
+    // accept connections until the server is stopped
+    void run() throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(port));
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop(i);
+                loops[i].start();
+            }
+            server.display("Server waiting for Clients on port " + port + " with " + loops.length
+                    + " event loops.");
+            while (server.isRunning()) {
+                // accept blocks, Server.stop() connects once to wake it up
+                SocketChannel channel = serverChannel.accept();
+                if (!server.isRunning()) {
+                    channel.close();
+                    break;
+                }
+                server.accepted.inc();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, options.tcpNoDelay);
+                loops[next++ % loops.length].register(channel);
+            }
+        } finally {
+            serverChannel.close();
+            server.drainClients();
+            for (EventLoop loop : loops) {
+                if (loop != null)
+                    loop.shutdown();
+            }
+        }
+    }
+
+    // one selector and the thread running it
+    class EventLoop extends Thread {
+        private final Selector selector;
+        // work handed over by other threads, run by the loop between selects
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        // Sessions waiting for their coalescing window to end, by deadline as
+        // the window is the same for all
+        private final ArrayDeque<Session> delayed = new ArrayDeque<Session>();
+        private volatile boolean running = true;
+
+        EventLoop(int index) throws IOException {
+            super("nio-loop-" + index);
+            selector = Selector.open();
+        }
+
+        // run a task on this loop
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != this)
+                selector.wakeup();
+        }
+
+        // take over a freshly accepted connection
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    new Session(channel, this);
+                } catch (IOException e) {
+                    server.display("Exception creating new Input/output Streams: " + e);
+                    try {
+                        channel.close();
+                    } catch (IOException ioE) {
+                    }
+                }
+            });
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        public void run() {
+            while (running) {
+                try {
+                    // do not sleep on tasks the loop posted to itself
+                    // nor past the end of the first coalescing window
+                    long wait = delayed.isEmpty() ? 0 : delayed.peek().flushAt - System.nanoTime();
+                    if (!tasks.isEmpty() || (!delayed.isEmpty() && wait <= 0))
+                        selector.selectNow();
+                    else if (delayed.isEmpty())
+                        selector.select();
+                    else
+                        selector.select((wait + 999999) / 1000000);
+                } catch (IOException e) {
+                    server.display("Exception in " + getName() + ": " + e);
+                    break;
+                }
+                // what one task or session throws stops only it, not the
+                // loop with every session on it
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException | StackOverflowError e) {
+                        server.display("Exception in a task of " + getName() + ": " + e);
+                    }
+                }
+                long now = System.nanoTime();
+                while (!delayed.isEmpty() && delayed.peek().flushAt - now <= 0) {
+                    Session s = delayed.poll();
+                    s.flushDelayed = false;
+                    try {
+                        s.flush();
+                    } catch (RuntimeException | StackOverflowError e) {
+                        s.crashed(e);
+                    }
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Session s = (Session) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable())
+                            s.onReadable();
+                        if (key.isValid() && key.isWritable())
+                            s.flush();
+                    } catch (RuntimeException | StackOverflowError e) {
+                        s.crashed(e);
+                    }
+                }
+            }
+            // close the connections still open on this loop
+            for (SelectionKey key : selector.keys())
+                ((Session) key.attachment()).close();
+            try {
+                selector.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    // one client connection, only read and flushed by its own event loop
+    class Session extends ChannelSession {
+        private final EventLoop loop;
+        // bytes read from the socket and not decoded yet
+        private ByteBuffer inBuf = ByteBuffer.allocate(8192);
+        private final ObjectStreamScanner scanner = new ObjectStreamScanner();
+        private ObjectInputStream sInput;
+        // true once the client said HELLO, see FrameCodec
+        private volatile boolean binary;
+        // set once the Client agreed to compression (FrameCodec.COMPRESS)
+        private volatile FrameDeflater deflater;
+        private Inflater inflater;
+        // a Client of version 2 gets the room messages numbered, and may
+        // have said where it left off (FrameCodec.RESUME)
+        private volatile boolean sequenced;
+        private String resumeRoom = ChatRoom.LOBBY;
+        private long resumeAfter = -1;
+        private String resumeProof;
+        // of the binary protocol agreed on, 0 with serialization: from
+        // version 3 it answers PING (see Heartbeat) and is told REFUSED,
+        // from version 4 it is given a TOKEN for its RESUME
+        private volatile int version;
+        // waiting in the delayed queue of the loop, and until when
+        private boolean flushDelayed;
+        private long flushAt;
+        // what flush hands to one gathering write
+        private final ByteBuffer[] batch = new ByteBuffer[Outbox.BATCH];
+
+        Session(SocketChannel channel, EventLoop loop) throws IOException {
+            super(NioServer.this.server, NioServer.this.options, channel, loop.selector);
+            this.loop = loop;
+            // the stream header goes out first, as with ClientThread
+            send(SerialEncoder.header());
+        }
+
+        void execute(Runnable task) {
+            loop.execute(task);
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == loop;
+        }
+
+        ByteBuffer[] batch() {
+            return batch;
+        }
+
+        ByteBuffer frame(EncodedMessage msg) {
+            return msg.frame(binary, deflater, sequenced);
+        }
+
+        // read what the socket has and handle every complete object
+        void onReadable() {
+            try {
+                int n;
+                // TLS may have read more records than inBuf took, the
+                // selector will not tell about them again
+                do {
+                    n = read(inBuf);
+                    if (n < 0) {
+                        drop(username + " Exception reading Streams: end of stream");
+                        return;
+                    }
+                    inBuf.flip();
+                    try {
+                        decode();
+                    } finally {
+                        inBuf.compact();
+                    }
+                    // make room for an object bigger than the buffer
+                    if (!inBuf.hasRemaining()) {
+                        if (inBuf.capacity() >= FrameCodec.MAX_FRAME)
+                            throw new StreamCorruptedException("message too big");
+                        ByteBuffer bigger = ByteBuffer.allocate(inBuf.capacity() * 2);
+                        inBuf.flip();
+                        bigger.put(inBuf);
+                        inBuf = bigger;
+                    }
+                } while (tls != null && n > 0 && tls.hasBuffered() && !closed);
+                // the handshake may have moved on, or ended and let the queue out
+                if (tls != null)
+                    flush();
+            } catch (IOException | ClassNotFoundException | ClassCastException e) {
+                drop(username + " Exception reading Streams: " + e);
+            }
+        }
+
+        private void decode() throws IOException, ClassNotFoundException {
+            if (sInput == null && !binary) {
+                // a binary client answers our header with HELLO instead of its own
+                byte[] hello = FrameCodec.hello();
+                if (inBuf.remaining() < FrameCodec.MAGIC.length)
+                    return;
+                if (inBuf.getInt(inBuf.position()) == ByteBuffer.wrap(hello).getInt()) {
+                    if (inBuf.remaining() < hello.length)
+                        return;
+                    version = inBuf.get(inBuf.position() + FrameCodec.MAGIC.length);
+                    if (version < 1)
+                        throw new StreamCorruptedException("unsupported protocol version " + version);
+                    // a newer Client speaks our version
+                    version = Math.min(version, FrameCodec.VERSION);
+                    inBuf.position(inBuf.position() + hello.length);
+                    binary = true;
+                    sequenced = version >= 2;
+                    send(FrameCodec.hello(version));
+                } else {
+                    sInput = new ObjectInputStream(new BufferInputStream());
+                }
+            }
+            while (!closed && !closing) {
+                if (binary) {
+                    if (FrameCodec.frameLength(inBuf) < 0)
+                        return;
+                    ChatMessage cm = FrameCodec.decode(inBuf, inflater);
+                    if (username == null && sequenced && cm.getType() == FrameCodec.RESUME) {
+                        // where it left off, before its login
+                        resumeAfter = FrameCodec.seqOf(cm.getMessage());
+                        resumeRoom = FrameCodec.roomOf(cm.getMessage());
+                        resumeProof = FrameCodec.textOf(cm.getMessage());
+                    } else if (username == null) {
+                        if (cm.getType() != FrameCodec.LOGIN)
+                            throw new StreamCorruptedException("expected login");
+                        login(cm.getMessage());
+                    } else if (cm.getType() == FrameCodec.COMPRESS) {
+                        compress(cm.getMessage());
+                    } else if (cm.getType() != FrameCodec.PONG) {
+                        // a PONG only says it is alive, see ChannelSession.read
+                        dispatch(cm);
+                    }
+                } else {
+                    int length = scanner.scan(inBuf);
+                    if (length < 0)
+                        return;
+                    int end = inBuf.position() + length;
+                    Object o = sInput.readObject();
+                    if (inBuf.position() != end)
+                        throw new StreamCorruptedException("object length mismatch");
+                    if (username == null)
+                        login((String) o);
+                    else
+                        dispatch((ChatMessage) o);
+                }
+            }
+        }
+
+        // read the username
+        private void login(String name) throws StreamCorruptedException {
+            if (name == null || name.trim().isEmpty())
+                throw new StreamCorruptedException("no username");
+            username = name;
+            date = new Date().toString() + "\n";
+            server.cancel(deadline);
+            if (!server.join(this, resumeRoom, resumeAfter, resumeProof)) {
+                server.refused.inc();
+                String msg = Server.notif + "Sorry. The username " + name + " is already taken." + Server.notif;
+                server.display(msg);
+                if (version >= 3)
+                    outbox.offer(ByteBuffer.wrap(FrameCodec.encode(FrameCodec.REFUSED, msg)));
+                else
+                    writeMsg(msg);
+                // not logged in, nothing to remove when it goes
+                username = null;
+                closing = true;
+                flush();
+            }
+        }
+
+        // answer the compression offer, the answer goes out before anything
+        // deflated
+        private void compress(String offer) {
+            boolean accept = server.acceptsCompression(offer);
+            if (accept)
+                inflater = new Inflater(true);
+            outbox.offer(ByteBuffer.wrap(FrameCodec.encode(FrameCodec.COMPRESS, accept ? FrameCodec.DEFLATE : "")));
+            if (accept)
+                deflater = new FrameDeflater(options.compressThreshold);
+            flush();
+        }
+
+        private void dispatch(ChatMessage cm) {
+            if (!server.handle(this, cm)) {
+                server.remove(id);
+                close();
+            }
+        }
+
+        public boolean ping() {
+            return version >= 3 && !closed && queue(ByteBuffer.wrap(FrameCodec.encode(FrameCodec.PING, "")));
+        }
+
+        public void resumeToken(String token) {
+            if (version >= 4)
+                queue(ByteBuffer.wrap(FrameCodec.encode(FrameCodec.TOKEN, token)));
+        }
+
+        // flush now, or at the end of the coalescing window unless enough is
+        // queued already, on the loop thread only
+        void flushLater() {
+            if (options.coalesceWindow == 0 || outbox.getQueuedBytes() >= options.coalesceBytes) {
+                flush();
+            } else if (!flushDelayed) {
+                flushDelayed = true;
+                flushAt = System.nanoTime() + options.coalesceWindow * 1000;
+                loop.delayed.add(this);
+            }
+        }
+
+        // what the ObjectInputStream reads: the bytes the scanner found complete
+        private class BufferInputStream extends InputStream {
+            public int read() {
+                return inBuf.hasRemaining() ? inBuf.get() & 0xff : -1;
+            }
+
+            public int read(byte[] b, int off, int len) {
+                if (len == 0)
+                    return 0;
+                if (!inBuf.hasRemaining())
+                    return -1;
+                len = Math.min(len, inBuf.remaining());
+                inBuf.get(b, off, len);
+                return len;
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+// finds where a serialized object ends in the bytes received so far, so a
+// non-blocking reader only calls readObject once the whole object is there.
+// Understands what Client writes: Strings and plain Serializable objects
+// (like ChatMessage) without writeObject methods, arrays or enums.
+class ObjectStreamScanner {
+    private static final int TC_NULL = 0x70, TC_REFERENCE = 0x71, TC_CLASSDESC = 0x72,
+            TC_OBJECT = 0x73, TC_STRING = 0x74, TC_ENDBLOCKDATA = 0x78, TC_RESET = 0x79,
+            TC_LONGSTRING = 0x7C;
+    private static final int BASE_HANDLE = 0x7e0000;
+    private static final int SC_WRITE_METHOD = 0x01, SC_SERIALIZABLE = 0x02;
+    // thrown when the object is not complete yet
+    private static final RuntimeException UNDERFLOW = new RuntimeException("underflow", null, false, false) {
+    };
+
+    // the fields of a class descriptor, in the order its data is written
+    private static class Layout {
+        char[] types;
+        Layout parent;
+    }
+
+    // one entry per handle of the stream: the Layout of class descriptors, null
+    // for strings and objects
+    private final ArrayList<Layout> handles = new ArrayList<Layout>();
+    // handles below this survive a scan that runs out of bytes
+    private int mark;
+    private ByteBuffer buf;
+    private int pos;
+
+    // the length of the object starting at the position of buf, or -1 if
+    // more bytes are needed. The position of buf is left untouched.
+    int scan(ByteBuffer buf) throws StreamCorruptedException {
+        this.buf = buf;
+        pos = buf.position();
+        mark = handles.size();
+        try {
+            content();
+            return pos - buf.position();
+        } catch (RuntimeException e) {
+            if (e != UNDERFLOW)
+                throw e;
+            // forget the handles of the incomplete object, it is scanned again later
+            while (handles.size() > mark)
+                handles.remove(handles.size() - 1);
+            return -1;
+        } finally {
+            this.buf = null;
+        }
+    }
+
+    private void content() throws StreamCorruptedException {
+        int tc = u1();
+        switch (tc) {
+            case TC_RESET:
+                handles.clear();
+                mark = 0;
+                content();
+                break;
+            case TC_NULL:
+                break;
+            case TC_REFERENCE:
+                skip(4);
+                break;
+            case TC_STRING:
+                handles.add(null);
+                skip(u2());
+                break;
+            case TC_LONGSTRING:
+                handles.add(null);
+                long len = u8();
+                if (len > Integer.MAX_VALUE)
+                    throw new StreamCorruptedException("string too long");
+                skip((int) len);
+                break;
+            case TC_OBJECT:
+                Layout layout = classDesc();
+                if (layout == null)
+                    throw new StreamCorruptedException("object without class");
+                handles.add(null);
+                classData(layout);
+                break;
+            default:
+                throw new StreamCorruptedException("unsupported type code " + tc);
+        }
+    }
+
+    private Layout classDesc() throws StreamCorruptedException {
+        int tc = u1();
+        switch (tc) {
+            case TC_NULL:
+                return null;
+            case TC_REFERENCE:
+                int handle = u4() - BASE_HANDLE;
+                if (handle < 0 || handle >= handles.size() || handles.get(handle) == null)
+                    throw new StreamCorruptedException("bad class handle");
+                return handles.get(handle);
+            case TC_CLASSDESC:
+                skip(u2()); // class name
+                skip(8); // serialVersionUID
+                Layout layout = new Layout();
+                int handleIndex = handles.size();
+                handles.add(null);
+                int flags = u1();
+                if ((flags & SC_SERIALIZABLE) == 0 || (flags & SC_WRITE_METHOD) != 0)
+                    throw new StreamCorruptedException("unsupported class flags " + flags);
+                layout.types = new char[u2()];
+                for (int i = 0; i < layout.types.length; i++) {
+                    layout.types[i] = (char) u1();
+                    skip(u2()); // field name
+                    // object fields also carry their class name as a String
+                    if (layout.types[i] == 'L' || layout.types[i] == '[')
+                        content();
+                }
+                if (u1() != TC_ENDBLOCKDATA)
+                    throw new StreamCorruptedException("unsupported class annotation");
+                layout.parent = classDesc();
+                handles.set(handleIndex, layout);
+                return layout;
+            default:
+                throw new StreamCorruptedException("unsupported class descriptor " + tc);
+        }
+    }
+
+    // the field values, superclass first
+    private void classData(Layout layout) throws StreamCorruptedException {
+        if (layout.parent != null)
+            classData(layout.parent);
+        for (char type : layout.types) {
+            switch (type) {
+                case 'B':
+                case 'Z':
+                    skip(1);
+                    break;
+                case 'C':
+                case 'S':
+                    skip(2);
+                    break;
+                case 'I':
+                case 'F':
+                    skip(4);
+                    break;
+                case 'J':
+                case 'D':
+                    skip(8);
+                    break;
+                case 'L':
+                case '[':
+                    content();
+                    break;
+                default:
+                    throw new StreamCorruptedException("bad field type " + type);
+            }
+        }
+    }
+
+    private void need(int n) {
+        if (buf.limit() - pos < n)
+            throw UNDERFLOW;
+    }
+
+    private void skip(int n) {
+        need(n);
+        pos += n;
+    }
+
+    private int u1() {
+        need(1);
+        return buf.get(pos++) & 0xff;
+    }
+
+    private int u2() {
+        need(2);
+        int v = buf.getShort(pos) & 0xffff;
+        pos += 2;
+        return v;
+    }
+
+    private int u4() {
+        need(4);
+        int v = buf.getInt(pos);
+        pos += 4;
+        return v;
+    }
+
+    private long u8() {
+        need(8);
+        long v = buf.getLong(pos);
+        pos += 8;
+        return v;
+    }
+}
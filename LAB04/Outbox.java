@@ -0,0 +1,219 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// the encoded messages waiting to be written to one client, bounded in bytes.
+// Once the queued bytes would pass the high watermark the client is slow:
+// the policy decides what happens until the writer gets it back under the
+// low watermark:
+//   drop-oldest  drop the oldest messages down to the low watermark
+//   drop-newest  drop the new messages
+//   disconnect   offer fails and the caller disconnects the client
+// A lock rather than synchronized: a virtual thread waiting in take() must
+// not pin its carrier thread.
+class Outbox {
+    // most frames handed to one gathering write
+    static final int BATCH = 64;
+    static final String DROP_OLDEST = "drop-oldest", DROP_NEWEST = "drop-newest", DISCONNECT = "disconnect";
+
+    private final ArrayDeque<ByteBuffer> frames = new ArrayDeque<ByteBuffer>();
+    private final long high, low;
+    private final String policy;
+    // between passing the high watermark and getting back under the low one
+    private boolean slow;
+    // how many frames at the head peek handed out, being written
+    private int writing;
+    private long queuedBytes;
+    // no more frames are coming, take() returns 0 once the queue is empty
+    private boolean shutdown;
+    private long dropped;
+    // the messages dropped by every Outbox of the server, may be null
+    private final Metrics.Counter droppedTotal;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    Outbox(long high, long low, String policy) {
+        this(high, low, policy, null);
+    }
+
+    Outbox(long high, long low, String policy, Metrics.Counter droppedTotal) {
+        this.high = high;
+        this.low = Math.min(low, high);
+        this.policy = policy;
+        this.droppedTotal = droppedTotal;
+    }
+
+    // queue a frame, false if the client has to be disconnected
+    boolean offer(ByteBuffer frame) {
+        lock.lock();
+        try {
+            int size = frame.remaining();
+            if (slow || queuedBytes + size > high) {
+                slow = true;
+                switch (policy) {
+                    case DISCONNECT:
+                        return false;
+                    case DROP_NEWEST:
+                        drop();
+                        return true;
+                    default:
+                        dropOldest(size);
+                }
+            }
+            frames.add(frame);
+            queuedBytes += size;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // make room for size bytes under the low watermark
+    private void dropOldest(int size) {
+        // the frames the writer already has stay
+        ArrayDeque<ByteBuffer> started = new ArrayDeque<ByteBuffer>();
+        while (started.size() < writing && !frames.isEmpty()) {
+            started.push(frames.poll());
+            queuedBytes -= started.peek().remaining();
+        }
+        while (!frames.isEmpty() && queuedBytes + size > low) {
+            queuedBytes -= frames.poll().remaining();
+            drop();
+        }
+        while (!started.isEmpty()) {
+            frames.addFirst(started.peek());
+            queuedBytes += started.pop().remaining();
+        }
+        slow = false;
+    }
+
+    private void drop() {
+        dropped++;
+        if (droppedTotal != null)
+            droppedTotal.inc();
+    }
+
+    // the frames at the head, at least one and no more than budget bytes in
+    // all after the first, for one gathering write. They are left in the
+    // queue while they are being written, returns how many are in batch.
+    int peek(ByteBuffer[] batch, long budget) {
+        lock.lock();
+        try {
+            writing = fill(batch, budget, false);
+            return writing;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // remove the frames of a peek batch that were written whole, the rest
+    // stays handed out until the next peek
+    void remove(ByteBuffer[] batch, int count) {
+        lock.lock();
+        try {
+            for (int i = 0; i < count && !batch[i].hasRemaining(); i++) {
+                // gone if the queue was cleared meanwhile
+                if (frames.peek() != batch[i])
+                    break;
+                frames.poll();
+                writing--;
+                written(batch[i].limit());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // wait for the next frame, then up to windowNanos for more until budget
+    // bytes are queued, and take a batch of them as peek does. Returns 0 once
+    // shut down and empty.
+    int take(ByteBuffer[] batch, long budget, long windowNanos) throws InterruptedException {
+        lock.lock();
+        try {
+            while (frames.isEmpty()) {
+                if (shutdown)
+                    return 0;
+                notEmpty.await();
+            }
+            long left = windowNanos;
+            while (left > 0 && queuedBytes < budget && !shutdown)
+                left = notEmpty.awaitNanos(left);
+            return fill(batch, budget, true);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int fill(ByteBuffer[] batch, long budget, boolean take) {
+        int n = 0;
+        long bytes = 0;
+        for (ByteBuffer frame : frames) {
+            if (n == batch.length || (n > 0 && bytes + frame.remaining() > budget))
+                break;
+            bytes += frame.remaining();
+            batch[n++] = frame;
+        }
+        if (take) {
+            for (int i = 0; i < n; i++)
+                written(frames.poll().remaining());
+        }
+        return n;
+    }
+
+    private void written(int size) {
+        queuedBytes -= size;
+        if (slow && queuedBytes <= low)
+            slow = false;
+    }
+
+    // let the writer finish what is queued and stop
+    void shutdown() {
+        lock.lock();
+        try {
+            shutdown = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isEmpty() {
+        lock.lock();
+        try {
+            return frames.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void clear() {
+        lock.lock();
+        try {
+            frames.clear();
+            writing = 0;
+            queuedBytes = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getQueuedBytes() {
+        lock.lock();
+        try {
+            return queuedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getDropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+// the list of the logged in users WHOISIN sends, kept as one EncodedMessage
+// that every Client asking for it shares. Joins and leaves only bump the
+// version; the first WHOISIN after a change builds the new list, the others
+// get the same encoded frame.
+class Presence {
+    // the list as of a version, never changed once built
+    private static class Snapshot {
+        final long version;
+        final EncodedMessage message;
+
+        Snapshot(long version, EncodedMessage message) {
+            this.version = version;
+            this.message = message;
+        }
+    }
+
+    private final AtomicLong version = new AtomicLong();
+    private volatile Snapshot snapshot = new Snapshot(-1, null);
+
+    // a user came or went, here or on another node
+    void changed() {
+        version.incrementAndGet();
+    }
+
+    // the current list, made with list if the users changed since the last one
+    EncodedMessage get(Supplier<String> list) {
+        Snapshot s = snapshot;
+        if (s.version == version.get())
+            return s.message;
+        // one thread builds it, the others wait for it rather than build it too
+        synchronized (this) {
+            s = snapshot;
+            // a change while it is built leaves it out of date, for the next one to rebuild
+            long v = version.get();
+            if (s.version != v)
+                snapshot = s = new Snapshot(v, new EncodedMessage(list.get(), true));
+            return s.message;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.LongConsumer;
+
+// the files under ChatLog and Mailbox: a directory of segment files named
+// after the log offset they start at, each created at full size and
+// memory-mapped. A record is
+//   int length | body | int length
+// so a segment can be read backwards from its end, and a zero length marks
+// the end of the written part of a segment. The mapped pages are forced to
+// disk every fsync interval and when a segment is full the next one is
+// started, the oldest segments are deleted to keep at most the configured
+// number.
+class SegmentStore implements Closeable {
+    private final Path dir;
+    private final String suffix;
+    // what the segments hold, for the fsync thread and the errors
+    private final String name;
+    private final int segmentSize;
+    private final int maxSegments;
+    // the segments by the offset they start at, the last one is written to
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+    private Segment active;
+    // the files of the dropped segments not deleted yet: a file still mapped
+    // cannot be deleted on Windows, its mapping goes when the segment is
+    // garbage collected, so the delete is tried again at every roll and fsync
+    private final List<Path> undeleted = new ArrayList<Path>();
+    // told the offset of the first segment left after dropping some, may be null
+    private final LongConsumer dropped;
+    private final ScheduledExecutorService fsync;
+
+    static class Segment {
+        final long base;
+        final Path path;
+        final MappedByteBuffer map;
+        // where the next record goes: what is below does not change any more
+        volatile int end;
+        // how far it is on disk
+        private int forced;
+
+        private Segment(long base, Path path, MappedByteBuffer map) {
+            this.base = base;
+            this.path = path;
+            this.map = map;
+        }
+    }
+
+    SegmentStore(Path dir, String suffix, String name, int segmentSize, int maxSegments, long fsyncMillis,
+            LongConsumer dropped) throws IOException {
+        this.dir = dir;
+        this.suffix = suffix;
+        this.name = name;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.dropped = dropped;
+        Files.createDirectories(dir);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + suffix)) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                long base = Long.parseLong(fileName.substring(0, fileName.length() - suffix.length()));
+                segments.put(base, open(base));
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("unexpected file in " + dir + ": " + e.getMessage());
+        }
+        active = segments.isEmpty() ? roll(0) : segments.lastEntry().getValue();
+        fsync = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, name + "-fsync");
+            t.setDaemon(true);
+            return t;
+        });
+        fsync.scheduleWithFixedDelay(this::force, fsyncMillis, fsyncMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // map a segment and find the end of what was written to it
+    private Segment open(long base) throws IOException {
+        Path path = dir.resolve(String.format("%020d", base) + suffix);
+        MappedByteBuffer map;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // the mapping stays valid after the channel is closed
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentSize, channel.size()));
+        }
+        Segment s = new Segment(base, path, map);
+        // skip the complete records, a torn one at the end is overwritten
+        int pos = 0;
+        while (pos + 4 <= map.capacity()) {
+            int length = map.getInt(pos);
+            if (length <= 0 || pos + 8 + length > map.capacity() || map.getInt(pos + 4 + length) != length)
+                break;
+            pos += 8 + length;
+        }
+        s.end = pos;
+        s.forced = pos;
+        return s;
+    }
+
+    // start the segment at base, dropping the oldest ones beyond maxSegments
+    private Segment roll(long base) throws IOException {
+        Segment s = open(base);
+        segments.put(base, s);
+        if (segments.size() > maxSegments) {
+            while (segments.size() > maxSegments)
+                undeleted.add(segments.pollFirstEntry().getValue().path);
+            if (dropped != null)
+                dropped.accept(segments.firstKey());
+        }
+        deleteDropped();
+        return s;
+    }
+
+    // delete the files of the dropped segments, keeping those that cannot be yet
+    private void deleteDropped() {
+        undeleted.removeIf(path -> {
+            try {
+                Files.deleteIfExists(path);
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        });
+    }
+
+    // add a record made of parts, returns its offset
+    synchronized long append(byte[]... parts) throws IOException {
+        int length = 0;
+        for (byte[] part : parts)
+            length += part.length;
+        // a record has to fit a segment with the end marker after it
+        if (12 + length > segmentSize)
+            throw new IOException("message too big for a " + name + " segment");
+        if (active.end + 12 + length > active.map.capacity()) {
+            force(active);
+            active = roll(active.base + active.end);
+        }
+        ByteBuffer map = active.map;
+        int pos = active.end;
+        map.putInt(pos, length);
+        int at = pos + 4;
+        for (byte[] part : parts) {
+            map.put(at, part);
+            at += part.length;
+        }
+        map.putInt(at, length);
+        // the end marker, in case the segment held older data
+        map.putInt(at + 4, 0);
+        active.end = at + 4;
+        return active.base + pos;
+    }
+
+    // the segments, oldest first
+    synchronized List<Segment> segments() {
+        return new ArrayList<Segment>(segments.values());
+    }
+
+    // the segment holding the record at offset, null if it was dropped
+    synchronized Segment segment(long offset) {
+        Map.Entry<Long, Segment> e = segments.floorEntry(offset);
+        return e == null ? null : e.getValue();
+    }
+
+    // write the new records of the active segment to disk
+    synchronized void force() {
+        force(active);
+        if (!undeleted.isEmpty())
+            deleteDropped();
+    }
+
+    private void force(Segment s) {
+        if (s.end > s.forced) {
+            s.map.force(s.forced, s.end - s.forced);
+            s.forced = s.end;
+        }
+    }
+
+    public void close() {
+        fsync.shutdown();
+        force();
+    }
+}
@@ -0,0 +1,52 @@
+// writes the Strings sent to a client that speaks Java serialization the
+// way ObjectOutputStream.writeObject does, followed by a reset. After a
+// reset the bytes of a String no longer depend on what the stream carried
+// before, so they are the same for every client: a broadcast encodes them
+// once, and an Outbox may drop any of them without breaking the stream.
+class SerialEncoder {
+    private static final byte TC_STRING = 0x74, TC_RESET = 0x79, TC_LONGSTRING = 0x7C;
+    // what ObjectOutputStream writes first
+    private static final byte[] HEADER = { (byte) 0xAC, (byte) 0xED, 0x00, 0x05 };
+
+    // what has to go out before the first String
+    static byte[] header() {
+        return HEADER.clone();
+    }
+
+    // a String in modified UTF-8, then TC_RESET
+    static byte[] encode(String msg) {
+        long utflen = 0;
+        for (int i = 0; i < msg.length(); i++) {
+            char c = msg.charAt(i);
+            utflen += c >= 0x0001 && c <= 0x007F ? 1 : c > 0x07FF ? 3 : 2;
+        }
+        boolean longString = utflen > 0xFFFF;
+        int head = longString ? 9 : 3;
+        byte[] out = new byte[(int) (head + utflen + 1)];
+        int pos = 0;
+        if (longString) {
+            out[pos++] = TC_LONGSTRING;
+            for (int shift = 56; shift >= 0; shift -= 8)
+                out[pos++] = (byte) (utflen >>> shift);
+        } else {
+            out[pos++] = TC_STRING;
+            out[pos++] = (byte) (utflen >>> 8);
+            out[pos++] = (byte) utflen;
+        }
+        for (int i = 0; i < msg.length(); i++) {
+            char c = msg.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                out[pos++] = (byte) c;
+            } else if (c > 0x07FF) {
+                out[pos++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+                out[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                out[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                out[pos++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+                out[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        out[pos] = TC_RESET;
+        return out;
+    }
+}
@@ -1,40 +1,243 @@
 
 import java.io.*;
 import java.net.*;
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.Inflater;
+import javax.net.ssl.SSLContext;
 
 // the server that can be run as a console
 public class Server {
     // a unique ID for each connection
     private static int uniqueId;
-    // an ArrayList to keep the list of the Client
-    private ArrayList<ClientThread> al;
+    // the connected Clients by id, safe to read while others join and leave
+    private ConcurrentHashMap<Integer, ChatConnection> clients;
+    // the same Clients by username, to find the target of a private message
+    private ConcurrentHashMap<String, ChatConnection> usernames;
+    // the token each Client got at login, that its RESUME has to show to
+    // replace it (FrameCodec.TOKEN)
+    private final ConcurrentHashMap<ChatConnection, String> resumeTokens =
+            new ConcurrentHashMap<ChatConnection, String>();
+    private final SecureRandom random = new SecureRandom();
+    // the rooms by name, a room goes away with its last member (except the lobby)
+    private ConcurrentHashMap<String, ChatRoom> rooms;
     // to display time
-    private SimpleDateFormat sdf;
+    private final CachedClock clock = new CachedClock();
     // the port number to listen for connection
     private int port;
     // to check if server is running
-    private boolean keepGoing;
+    private volatile boolean keepGoing;
+    // set by stop(), a Server that never started is not stopping
+    private volatile boolean stopping;
     // notification
-    private String notif = " *** ";
+    static final String notif = " *** ";
+    // the startup options
+    private ServerOptions options;
+    // from this many recipients a broadcast is encoded into a direct buffer
+    private static final int DIRECT_FANOUT = 32;
+    // the messages broadcast in the rooms, null if no history is kept
+    private ChatLog history;
+    // the private messages to users logged in nowhere, null if they are not kept
+    private Mailbox mailbox;
+    // the other Servers of the cluster, null if this one is alone
+    private ClusterNode cluster;
+    // the TLS context of the Client connections, null for plain TCP
+    SSLContext tls;
+    // the browsers, null without --ws-port
+    private WebSocketGateway gateway;
+    // runs the heartbeats and login deadlines of every connection, null
+    // without --heartbeat nor --idle-timeout
+    private TimerWheel wheel;
+    // removes the connections the wheel found dead or idle: telling their
+    // room and writing the history is not done on the thread of the wheel
+    private ExecutorService reaper;
+    // what WHOISIN sends, rebuilt after the users change
+    final Presence presence = new Presence();
+    // what is measured, served in the Prometheus format at --metrics
+    final Metrics metrics = new Metrics();
+    final Metrics.Counter accepted = metrics.counter("chat_connections_accepted_total",
+            "Connections accepted.");
+    final Metrics.Counter refused = metrics.counter("chat_logins_refused_total",
+            "Logins refused because the username was taken.");
+    private final Metrics.Counter[] messagesIn = new Metrics.Counter[7];
+    final Metrics.Counter messagesOut = metrics.counter("chat_messages_out_total",
+            "Messages queued for the clients.");
+    final Metrics.Counter bytesIn = metrics.counter("chat_bytes_in_total", "Bytes read from the clients.");
+    final Metrics.Counter bytesOut = metrics.counter("chat_bytes_out_total", "Bytes written to the clients.");
+    final Metrics.Counter writes = metrics.counter("chat_socket_writes_total",
+            "Write calls on client sockets, each may gather several messages.");
+    final Metrics.Counter dropped = metrics.counter("chat_outbox_dropped_total",
+            "Messages dropped by the slow client policy.");
+    final Metrics.Counter slowDisconnects = metrics.counter("chat_slow_disconnects_total",
+            "Clients disconnected for not reading their messages.");
+    private final Metrics.Histogram fanOutTime = metrics.histogram("chat_broadcast_fanout_seconds",
+            "Time to queue a room message for every member of the room.", 0.00001, 0.00005, 0.0001, 0.0005, 0.001,
+            0.005, 0.01, 0.05, 0.1, 0.5, 1);
+    final Metrics.Counter throttledUser = metrics.counter("chat_throttled_total", "limit=\"user\"",
+            "Messages not sent because a rate limit was reached, by limit.");
+    final Metrics.Counter throttledGlobal = metrics.counter("chat_throttled_total", "limit=\"global\"",
+            "Messages not sent because a rate limit was reached, by limit.");
+    private final Metrics.Counter mailed = metrics.counter("chat_mailbox_messages_total", "event=\"kept\"",
+            "Private messages kept for users logged in nowhere, and given to them at login.");
+    private final Metrics.Counter mailDelivered = metrics.counter("chat_mailbox_messages_total",
+            "event=\"delivered\"", "Private messages kept for users logged in nowhere, and given to them at login.");
+    private final Metrics.Counter reapedDead = metrics.counter("chat_reaped_total", "reason=\"dead\"",
+            "Connections closed for not answering a ping, or for sending nothing for the idle timeout, by reason.");
+    private final Metrics.Counter reapedIdle = metrics.counter("chat_reaped_total", "reason=\"idle\"",
+            "Connections closed for not answering a ping, or for sending nothing for the idle timeout, by reason.");
+    // how fast all the clients together may send messages, null for no limit
+    private final TokenBucket globalLimit;
+    // most messages a HISTORY request gets
+    private static final int MAX_HISTORY = 1000;
 
     // constructor that receive the port to listen to for connection as parameter
     public Server(int port) {
+        this(port, new ServerOptions());
+    }
+
+    public Server(int port, ServerOptions options) {
         // the port
         this.port = port;
-        // to display hh:mm:ss
-        sdf = new SimpleDateFormat("HH:mm:ss");
-        // an ArrayList to keep the list of the Client
-        al = new ArrayList<ClientThread>();
+        this.options = options;
+        globalLimit = options.globalLimit();
+        // the Clients
+        clients = new ConcurrentHashMap<Integer, ChatConnection>();
+        usernames = new ConcurrentHashMap<String, ChatConnection>();
+        rooms = new ConcurrentHashMap<String, ChatRoom>();
+        rooms.put(ChatRoom.LOBBY, new ChatRoom(ChatRoom.LOBBY, options.resumeBuffer, options.resumeChars));
+        String[] types = { "whoisin", "message", "logout", "join", "leave", "list", "history" };
+        for (int i = 0; i < types.length; i++)
+            messagesIn[i] = metrics.counter("chat_messages_in_total", "type=\"" + types[i] + "\"",
+                    "ChatMessages received from the clients, by type.");
+        metrics.gauge("chat_clients", "Clients logged in.", () -> clients.size());
+        metrics.gauge("chat_rooms", "Rooms open.", () -> rooms.size());
+        metrics.gauge("chat_mailbox_users", "Users with private messages waiting for their login.",
+                () -> mailbox == null ? 0 : mailbox.users());
+        metrics.gauge("chat_outbox_queued_bytes", "Bytes waiting to be written, all clients together.", () -> {
+            long sum = 0;
+            for (ChatConnection c : clients.values())
+                sum += c.getQueuedBytes();
+            return sum;
+        });
+        metrics.gauge("chat_outbox_queued_bytes_max", "Bytes waiting to be written to the slowest client.", () -> {
+            long max = 0;
+            for (ChatConnection c : clients.values())
+                max = Math.max(max, c.getQueuedBytes());
+            return max;
+        });
     }
 
     public void start() {
         keepGoing = true;
+        if (options.historyDir != null) {
+            try {
+                history = new ChatLog(Paths.get(options.historyDir), options.historySegment,
+                        options.historySegments, options.historyFsync);
+            } catch (IOException e) {
+                display("Exception opening the history in " + options.historyDir + ": " + e);
+                return;
+            }
+        }
+        if (options.tlsKeystore != null) {
+            try {
+                tls = TlsChannel.serverContext(options.tlsKeystore, options.tlsPassword.toCharArray(),
+                        options.tlsSessionCache, options.tlsSessionTimeout);
+            } catch (IOException | GeneralSecurityException e) {
+                display("Exception loading the TLS key from " + options.tlsKeystore + ": " + e);
+                if (history != null)
+                    history.close();
+                return;
+            }
+        }
+        if (options.mailboxDir != null) {
+            try {
+                mailbox = new Mailbox(Paths.get(options.mailboxDir), options.mailboxSegment, options.mailboxSegments,
+                        options.mailboxLimit, options.mailboxUsers, options.historyFsync);
+            } catch (IOException e) {
+                display("Exception opening the mailbox in " + options.mailboxDir + ": " + e);
+                if (history != null)
+                    history.close();
+                return;
+            }
+        }
+        try {
+            // one thread for the timers of all the connections, however many
+            if (options.heartbeat > 0 || options.idleTimeout > 0) {
+                wheel = new TimerWheel(TimerWheel.TICK, TimerWheel.SLOTS, "heartbeat");
+                reaper = Executors.newSingleThreadExecutor(r -> {
+                    Thread t = new Thread(r, "reaper");
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+            if (options.metricsPort > 0) {
+                try {
+                    metrics.serve(options.metricsHost, options.metricsPort);
+                } catch (IOException e) {
+                    display("Exception on the metrics port " + options.metricsPort + ": " + e);
+                    return;
+                }
+            }
+            if (options.clusterPort > 0) {
+                cluster = new ClusterNode(this, options);
+                try {
+                    cluster.start();
+                } catch (IOException e) {
+                    display("Exception on the cluster port " + options.clusterPort + ": " + e);
+                    return;
+                }
+            }
+            if (options.wsPort > 0) {
+                gateway = new WebSocketGateway(this, options);
+                try {
+                    gateway.start();
+                } catch (IOException e) {
+                    display("Exception on the WebSocket port " + options.wsPort + ": " + e);
+                    return;
+                }
+            }
+            // serve every client from a few selector event loops instead of a thread each
+            if (options.mode.equals("nio")) {
+                try {
+                    new NioServer(this, port, options).run();
+                } catch (IOException e) {
+                    display("Exception on new ServerSocketChannel: " + e);
+                }
+            } else {
+                serve();
+            }
+        } finally {
+            if (wheel != null) {
+                wheel.stop();
+                reaper.shutdown();
+            }
+            metrics.stop();
+            if (gateway != null)
+                gateway.stop();
+            if (cluster != null)
+                cluster.stop();
+            if (history != null)
+                history.close();
+            if (mailbox != null)
+                mailbox.close();
+        }
+    }
+
+    // accept the Clients, each one gets a ClientThread
+    private void serve() {
         // create socket server and wait for connection requests
         try {
-            // the socket used by the server
-            ServerSocket serverSocket = new ServerSocket(port);
+            // the socket used by the server, from a channel so that the Clients
+            // can write ByteBuffers without copying them
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            ServerSocket serverSocket = serverChannel.socket();
             // infinite loop to wait for connections ( till server is active )
             while (keepGoing) {
                 display("Server waiting for Clients on port " + port + ".");
@@ -43,39 +246,32 @@ public class Server {
                 // break if server stoped
                 if (!keepGoing)
                     break;
-                // if client is connected, create its thread
-                ClientThread t = new ClientThread(socket);
-                // add this client to arraylist
-                al.add(t);
-                t.start();
+                accepted.inc();
+                socket.setTcpNoDelay(options.tcpNoDelay);
+                // its own thread does the TLS handshake and reads the login,
+                // a slow or silent Client does not hold up the next ones
+                new ClientThread(socket).start();
             }
             // try to stop the server
             try {
                 serverSocket.close();
-                for (int i = 0; i < al.size(); ++i) {
-                    ClientThread tc = al.get(i);
-                    try {
-                        // close all data streams and socket
-                        tc.sInput.close();
-                        tc.sOutput.close();
-                        tc.socket.close();
-                    } catch (IOException ioE) {
-                    }
-                }
             } catch (Exception e) {
-                display("Exception closing the server and clients: " + e);
+                display("Exception closing the server: " + e);
             }
+            drainClients();
         } catch (IOException e) {
 
-            String msg = sdf.format(new Date()) + " Exception on new ServerSocket: " + e + "\n";
+            String msg = now() + " Exception on new ServerSocket: " + e + "\n";
 
             display(msg);
         }
     }
 
-    // to stop the server
+    // to stop the server: no new connections, the messages already queued
+    // still go out, see drainClients
     @SuppressWarnings("resource")
     protected void stop() {
+        stopping = true;
         keepGoing = false;
         try {
             Socket socket = new Socket("localhost", port);
@@ -83,119 +279,632 @@ public class Server {
         }
     }
 
+    boolean isRunning() {
+        return keepGoing;
+    }
+
+    // once the server stopped accepting: let every Client get what is queued
+    // for it and a last notice, and close it as soon as it has. Those still
+    // not done at the drain deadline are cut off, all at the same time.
+    void drainClients() {
+        long deadline = System.nanoTime() + options.drainTimeout * 1000000;
+        List<ChatConnection> all = new ArrayList<ChatConnection>(clients.values());
+        EncodedMessage last = new EncodedMessage(notif + "The server is shutting down." + notif,
+                all.size() >= DIRECT_FANOUT);
+        for (ChatConnection c : all) {
+            c.writeMsg(last);
+            c.finish();
+        }
+        List<ChatConnection> left = new ArrayList<ChatConnection>(all);
+        while (System.nanoTime() < deadline) {
+            left.removeIf(ChatConnection::isClosed);
+            if (left.isEmpty())
+                break;
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        left.removeIf(ChatConnection::isClosed);
+        // close does not wait for anything, the socket is cut
+        for (ChatConnection c : left)
+            c.close();
+        display("Closed " + all.size() + " clients, " + left.size() + " cut off at the drain deadline.");
+    }
+
+    // run r on a new thread, a virtual one in virtual mode
+    private Thread startThread(Runnable r, String name) {
+        // a virtual thread only holds a small stack while it waits on the socket
+        if (options.mode.equals("virtual"))
+            return Thread.ofVirtual().name(name).start(r);
+        Thread t = new Thread(r, name);
+        t.start();
+        return t;
+    }
+
+    // a unique ID for a new connection
+    static synchronized int nextId() {
+        return ++uniqueId;
+    }
+
+    // the time as hh:mm:ss
+    private String now() {
+        return clock.now();
+    }
+
     // Display an event to the console
-    private void display(String msg) {
-        String time = sdf.format(new Date()) + " " + msg;
+    void display(String msg) {
+        String time = now() + " " + msg;
         System.out.println(time);
     }
 
-    // to broadcast a message to all Clients
-    private synchronized boolean broadcast(String message) {
+    // the logged in Clients of this Server
+    Collection<ChatConnection> connections() {
+        return clients.values();
+    }
+
+    // a Client whose write failed: drop it from the list
+    private void evict(ChatConnection c) {
+        if (clients.remove(c.getClientId(), c)) {
+            unwatch(c);
+            usernames.remove(c.getUsername(), c);
+            resumeTokens.remove(c);
+            presence.changed();
+            if (cluster != null)
+                cluster.left(c.getUsername());
+            leaveRoom(c);
+            display("Disconnected Client " + c.getUsername() + " removed from list.");
+        }
+    }
+
+    // to broadcast a message to all Clients of a room, or to the mentioned
+    // user in any room, on any node of the cluster
+    private boolean broadcast(ChatRoom room, String message) {
         // add timestamp to the message
-        String time = sdf.format(new Date());
+        String time = now();
         // to check if message is private i.e. client to client message
-        String[] w = message.split(" ", 3);
-        boolean isPrivate = false;
-        if (w[1].charAt(0) == '@')
-            isPrivate = true;
+        int target = MessageParser.targetStart(message);
         // if private message, send message to mentioned username only
-        if (isPrivate == true) {
-            String tocheck = w[1].substring(1, w[1].length());
-            message = w[0] + w[2];
+        if (target >= 0) {
+            int end = MessageParser.targetEnd(message, target);
+            String tocheck = message.substring(target, end);
+            String messageLf = privateText(time, message, end);
+            ChatConnection ct1 = usernames.get(tocheck);
+            // mentioned user not found here, maybe on another node of the cluster
+            if (ct1 == null)
+                return cluster != null && cluster.relayTo(tocheck, messageLf);
+            // try to write to the Client if it fails remove it from the list
+            if (!ct1.writeMsg(messageLf))
+                evict(ct1);
+        }
+        // if message is a broadcast message
+        else {
             String messageLf = time + " " + message + "\n";
-            boolean found = false;
-            // we loop in reverse order to find the mentioned username
-            for (int y = al.size(); --y >= 0;) {
-                ClientThread ct1 = al.get(y);
-                String check = ct1.getUsername();
-                if (check.equals(tocheck)) {
-                    // try to write to the Client if it fails remove it from the list
-                    if (!ct1.writeMsg(messageLf)) {
-                        al.remove(y);
-                        display("Disconnected Client " + ct1.username + " removed from list.");
+            // display message
+            System.out.print(messageLf);
+            fanOut(room, messageLf);
+            record(room.name, messageLf);
+            if (cluster != null)
+                cluster.relayRoom(room.name, messageLf);
+        }
+        return true;
+    }
 
-                    }
-                    // username found and delivered the message
-                    found = true;
-                    break;
+    // "user:" and the text of a private message whose target ends at end,
+    // without the target
+    private static String privateText(String time, String message, int end) {
+        return new StringBuilder(time.length() + message.length() + 1).append(time).append(' ')
+                .append(message, 0, MessageParser.senderEnd(message))
+                .append(message, MessageParser.textStart(message, end), message.length()).append('\n').toString();
+    }
+
+    // a private message to a user logged in nowhere: keep it for its next
+    // login if it logged in before, what to tell the sender
+    private String keep(String message) {
+        String noSuchUser = notif + "Sorry. No such user exists." + notif;
+        if (mailbox == null)
+            return noSuchUser;
+        int target = MessageParser.targetStart(message);
+        int end = MessageParser.targetEnd(message, target);
+        String username = message.substring(target, end);
+        if (!mailbox.isKnown(username))
+            return noSuchUser;
+        try {
+            if (!mailbox.put(username, privateText(now(), message, end)))
+                return notif + "Sorry. There is no room left in the mailbox for " + username + "." + notif;
+        } catch (IOException e) {
+            display("Exception writing the mailbox: " + e);
+            return notif + "Sorry. Your message to " + username + " could not be kept." + notif;
+        }
+        mailed.inc();
+        return notif + username + " is not connected, they will get your message when they log in." + notif;
+    }
+
+    // give c the messages kept for it while it was away, in one message
+    private void deliverMail(ChatConnection c) {
+        // half the high watermark so that the mail alone never makes c
+        // slow, the newer messages wait for its next login
+        Mailbox.Mail mail = mailbox.peek(c.getUsername(), options.highWatermark / 2);
+        if (mail == null)
+            return;
+        StringBuilder sb = new StringBuilder(notif + "While you were away (" + mail.messages.size() + " messages"
+                + (mail.left > 0 ? ", " + mail.left + " more kept for your next login" : "") + ")" + notif + "\n");
+        for (String msg : mail.messages)
+            sb.append(msg);
+        // a connection already closed or too slow to take it leaves the
+        // messages for the next login
+        if (!c.writeMsg(sb.toString()))
+            return;
+        try {
+            mailbox.given(c.getUsername(), mail);
+        } catch (IOException e) {
+            display("Exception writing the mailbox: " + e);
+            return;
+        }
+        mailDelivered.add(mail.messages.size());
+    }
+
+    // write a message to every Client of a room. There is no global lock:
+    // writeMsg only puts the message on the outbound queue of each Client
+    private void fanOut(ChatRoom room, String messageLf) {
+        long start = System.nanoTime();
+        List<ChatConnection> failed = null;
+        // numbered and queued under the lock of the room, so that every
+        // member gets the messages in the order of their numbers. Clients
+        // that join meanwhile may or may not get it.
+        synchronized (room) {
+            // encoded once, every Client gets the same bytes
+            EncodedMessage encoded = room.publish(messageLf, room.members.size() >= DIRECT_FANOUT);
+            for (ChatConnection ct : room.members) {
+                if (!ct.writeMsg(encoded)) {
+                    if (failed == null)
+                        failed = new ArrayList<ChatConnection>();
+                    failed.add(ct);
                 }
+            }
+        }
+        // the Clients whose write failed are removed out of the lock, see enterRoom
+        if (failed != null) {
+            for (ChatConnection ct : failed)
+                evict(ct);
+        }
+        fanOutTime.observeNanos(System.nanoTime() - start);
+    }
 
+    // add a message of a room to the history
+    private void record(String room, String messageLf) {
+        if (history != null) {
+            try {
+                history.append(room, messageLf);
+            } catch (IOException e) {
+                display("Exception writing the history: " + e);
             }
-            // mentioned user not found, return false
-            if (found != true) {
-                return false;
+        }
+    }
+
+    // a message broadcast in a room of another node of the cluster
+    void deliver(String room, String messageLf) {
+        ChatRoom r = rooms.get(room);
+        if (r != null)
+            fanOut(r, messageLf);
+        record(room, messageLf);
+    }
+
+    // a private message from another node of the cluster
+    void deliverTo(String username, String messageLf) {
+        ChatConnection ct = usernames.get(username);
+        if (ct != null && !ct.writeMsg(messageLf))
+            evict(ct);
+    }
+
+    // a client logged in: tell the others and add it to the list, false if
+    // its username is already taken
+    boolean join(ChatConnection c) {
+        return join(c, ChatRoom.LOBBY, -1, null);
+    }
+
+    // the same for a Client coming back, that last got message number after
+    // of room (0 for none, -1 if it is not coming back) and shows the token
+    // of its old connection (null for none), see FrameCodec.RESUME
+    boolean join(ChatConnection c, String room, long after, String token) {
+        // a user of another node is not seen before its presence arrives,
+        // two nodes may let in the same name at the same time
+        if (cluster != null && cluster.isRemote(c.getUsername()))
+            return false;
+        if (after >= 0)
+            replace(c.getUsername(), token);
+        if (usernames.putIfAbsent(c.getUsername(), c) != null)
+            return false;
+        clients.put(c.getClientId(), c);
+        String issued = newToken();
+        resumeTokens.put(c, issued);
+        c.resumeToken(issued);
+        presence.changed();
+        if (cluster != null)
+            cluster.joined(c);
+        enterRoom(c, ChatRoom.isValidName(room) ? room : ChatRoom.LOBBY,
+                notif + c.getUsername() + " has joined the chat room." + notif, after);
+        if (history != null && options.historyOnJoin > 0)
+            replay(c, options.historyOnJoin);
+        if (mailbox != null) {
+            try {
+                mailbox.login(c.getUsername());
+            } catch (IOException e) {
+                display("Exception writing the mailbox: " + e);
             }
+            deliverMail(c);
         }
-        // if message is a broadcast message
-        else {
-            String messageLf = time + " " + message + "\n";
-            // display message
-            System.out.print(messageLf);
-            // we loop in reverse order in case we would have to remove a Client
-            // because it has disconnected
-            for (int i = al.size(); --i >= 0;) {
-                ClientThread ct = al.get(i);
-                // try to write to the Client if it fails remove it from the list
-                if (!ct.writeMsg(messageLf)) {
-                    al.remove(i);
-                    display("Disconnected Client " + ct.username + " removed from list.");
+        watch(c);
+        return true;
+    }
+
+    // milliseconds between two looks at a connection, see beat
+    private long heartbeatMillis() {
+        return (options.heartbeat > 0 ? options.heartbeat : options.idleTimeout) * 1000L;
+    }
+
+    // run close if the connection has not logged in after two heartbeats,
+    // so that a client that connects and says nothing does not stay open;
+    // null if there are no heartbeats
+    TimerWheel.Timeout loginDeadline(Runnable close) {
+        return wheel == null ? null : wheel.schedule(close, 2 * heartbeatMillis());
+    }
+
+    // forget a deadline or heartbeat, t may be null
+    void cancel(TimerWheel.Timeout t) {
+        if (wheel != null)
+            wheel.cancel(t);
+    }
+
+    // start looking at a client that logged in
+    private void watch(ChatConnection c) {
+        Heartbeat h = c.getHeartbeat();
+        if (wheel != null && h != null)
+            h.timeout = wheel.schedule(() -> beat(c), heartbeatMillis());
+    }
+
+    // a client that is gone is not looked at any more
+    private void unwatch(ChatConnection c) {
+        Heartbeat h = c.getHeartbeat();
+        if (h != null)
+            cancel(h.timeout);
+    }
+
+    // look at c, on the thread of the wheel, once per heartbeat interval:
+    // ping it if nothing came from it since the last look, reap it if it did
+    // not answer the ping since (a peer that vanished without closing keeps
+    // its socket open) or if it sent no message for the idle timeout.
+    // A client that cannot answer a ping is only reaped when idle. The wheel
+    // only looks, the reaper removes.
+    private void beat(ChatConnection c) {
+        Heartbeat h = c.getHeartbeat();
+        if (clients.get(c.getClientId()) != c)
+            return;
+        // closed without leaving the list, as when a write failed
+        if (c.isClosed()) {
+            reap(() -> evict(c));
+            return;
+        }
+        if (options.idleTimeout > 0 && System.nanoTime() - h.lastActive > options.idleTimeout * 1000000000L) {
+            reap(() -> reap(c, "sent nothing for " + options.idleTimeout + " seconds", reapedIdle));
+            return;
+        }
+        if (h.heard) {
+            h.heard = false;
+            h.pinged = false;
+        } else if (h.pinged) {
+            reap(() -> reap(c, "did not answer the heartbeat", reapedDead));
+            return;
+        } else if (options.heartbeat > 0) {
+            h.pinged = c.ping();
+        }
+        h.timeout = wheel.schedule(() -> beat(c), heartbeatMillis());
+    }
+
+    // run the removal of a connection on the reaper
+    private void reap(Runnable removal) {
+        try {
+            reaper.execute(removal);
+        } catch (RejectedExecutionException e) {
+            // the server stopped, its drain closes everyone
+        }
+    }
+
+    // close c and tell its room it left
+    private void reap(ChatConnection c, String why, Metrics.Counter counter) {
+        display(notif + c.getUsername() + " " + why + ", disconnecting" + notif);
+        counter.inc();
+        remove(c.getClientId());
+        c.close();
+    }
+
+    // a Client coming back replaces the connection it left behind, that may
+    // not have been found dead yet
+    private void replace(String username, String token) {
+        ChatConnection old = usernames.get(username);
+        // only for the Client that was given the token of the old
+        // connection, not for anyone saying its name
+        String expected = old == null ? null : resumeTokens.get(old);
+        if (expected == null || token == null
+                || !MessageDigest.isEqual(expected.getBytes(), token.getBytes()))
+            return;
+        display(notif + username + " is back, closing its old connection" + notif);
+        evict(old);
+        old.close();
+    }
+
+    // a random token for a Client that logged in, see replace
+    private String newToken() {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    // send c the last n messages of its room, all in one message
+    private void replay(ChatConnection c, int n) {
+        if (history == null) {
+            c.writeMsg(notif + "Sorry. This server keeps no history." + notif);
+            return;
+        }
+        ChatRoom room = c.getRoom();
+        // half the high watermark so that the replay alone never makes c slow
+        List<String> last = history.last(room.name, Math.min(n, MAX_HISTORY), options.highWatermark / 2);
+        StringBuilder sb = new StringBuilder("History of " + room.name + " (" + last.size() + " messages)\n");
+        for (String msg : last)
+            sb.append(msg);
+        c.writeMsg(sb.toString());
+    }
+
+    // tell the room and add c to it, creating the room if needed
+    private void enterRoom(ChatConnection c, String name, String notice) {
+        enterRoom(c, name, notice, 0);
+    }
+
+    // the same, first sending c the kept messages after number after if it
+    // is coming back to the room
+    private void enterRoom(ChatConnection c, String name, String notice, long after) {
+        // compute() so that the room cannot go away between the lookup and the add
+        ChatRoom room = rooms.compute(name, (k, r) -> r != null ? r : new ChatRoom(k, options.resumeBuffer, options.resumeChars));
+        broadcast(room, notice);
+        rooms.compute(name, (k, r) -> {
+            if (r == null)
+                r = new ChatRoom(k, options.resumeBuffer, options.resumeChars);
+            // no message of the room between what c missed and what comes next;
+            // the lock of the room is always taken after the one of the map
+            synchronized (r) {
+                if (after > 0) {
+                    List<EncodedMessage> missed = new ArrayList<EncodedMessage>();
+                    if (!r.since(after, missed))
+                        c.writeMsg(notif + "Some messages of " + k + " were lost while you were away, see HISTORY."
+                                + notif);
+                    for (EncodedMessage m : missed)
+                        c.writeMsg(m);
                 }
+                r.members.add(c);
             }
+            c.setRoom(r);
+            return r;
+        });
+    }
+
+    // take c out of its room, dropping the room if it was the last one in it
+    private ChatRoom leaveRoom(ChatConnection c) {
+        ChatRoom room = c.getRoom();
+        if (room == null)
+            return null;
+        rooms.computeIfPresent(room.name, (k, r) -> {
+            r.members.remove(c);
+            return r.members.isEmpty() && !k.equals(ChatRoom.LOBBY) ? null : r;
+        });
+        return room;
+    }
+
+    // move c to the named room
+    private void changeRoom(ChatConnection c, String name) {
+        if (!ChatRoom.isValidName(name)) {
+            c.writeMsg(notif + "Sorry. A room name is one word of up to " + ChatRoom.MAX_NAME
+                    + " letters, digits, - or _." + notif);
+            return;
+        }
+        if (c.getRoom() != null && c.getRoom().name.equals(name)) {
+            c.writeMsg(notif + "You are already in " + name + "." + notif);
+            return;
+        }
+        ChatRoom old = leaveRoom(c);
+        if (old != null)
+            broadcast(old, notif + c.getUsername() + " has left the room " + old.name + "." + notif);
+        enterRoom(c, name, notif + c.getUsername() + " has joined the room " + name + "." + notif);
+        c.writeMsg(notif + "You are now in " + name + "." + notif);
+    }
+
+    // whether a binary Client offering this compression gets it
+    boolean acceptsCompression(String offer) {
+        return options.compression && offer.equals(FrameCodec.DEFLATE);
+    }
+
+    // whether c may send a message now, by its own limit and by the limit of
+    // the whole server. A client with a limit of its own is told once when it
+    // goes over, not for every message it floods.
+    private boolean admit(ChatConnection c) {
+        TokenBucket limit = c.getSendLimit();
+        if (limit != null && !limit.tryAcquire()) {
+            throttledUser.inc();
+        } else if (globalLimit != null && !globalLimit.tryAcquire()) {
+            throttledGlobal.inc();
+        } else {
+            if (limit != null)
+                limit.warned = false;
+            return true;
+        }
+        if (limit == null || !limit.warned) {
+            c.writeMsg(notif + "Not sent, you are sending too fast." + notif);
+            if (limit != null)
+                limit.warned = true;
+        }
+        return false;
+    }
+
+    // the list of the users here and on the other nodes
+    private String whoIsIn() {
+        StringBuilder sb = new StringBuilder("List of the users connected, unchanged since " + now() + "\n");
+        int i = 0;
+        for (ChatConnection ct : clients.values())
+            sb.append(++i).append(") ").append(ct.getUsername()).append(" since ").append(ct.getDate());
+        if (cluster != null) {
+            for (Map.Entry<String, ClusterNode.RemoteUser> e : cluster.remoteUsers().entrySet())
+                sb.append(++i).append(") ").append(e.getKey()).append(" on ").append(e.getValue().node)
+                        .append(" since ").append(e.getValue().date);
+        }
+        return sb.toString();
+    }
+
+    // act on a ChatMessage received from a client, false if it logged out
+    boolean handle(ChatConnection c, ChatMessage cm) {
+        // a serialized client may send anything, nothing is a way out
+        if (cm == null)
+            return false;
+        Heartbeat h = c.getHeartbeat();
+        if (h != null)
+            h.lastActive = System.nanoTime();
+        // nothing new once the server is stopping but a way out, what is
+        // queued goes out
+        if (stopping && cm.getType() != ChatMessage.LOGOUT) {
+            if (cm.getType() == ChatMessage.MESSAGE)
+                c.writeMsg(notif + "Not sent, the server is shutting down." + notif);
+            return true;
+        }
+        // get the message from the ChatMessage object received, a
+        // serialized one may come without
+        String message = cm.getMessage() != null ? cm.getMessage() : "";
+        if (cm.getType() >= 0 && cm.getType() < messagesIn.length)
+            messagesIn[cm.getType()].inc();
+        // different actions based on type message
+        switch (cm.getType()) {
+            case ChatMessage.MESSAGE:
+                // a flood is stopped before it is broadcast
+                if (!admit(c))
+                    break;
+                boolean confirmation = broadcast(c.getRoom(), c.getUsername() + ": " + message);
+                if (confirmation == false)
+                    c.writeMsg(keep(c.getUsername() + ": " + message));
+                break;
+            case ChatMessage.LOGOUT:
+                display(c.getUsername() + " disconnected with a LOGOUT message.");
+                return false;
+            case ChatMessage.WHOISIN:
+                // one frame, the same for everyone until a user comes or goes
+                c.writeMsg(presence.get(this::whoIsIn));
+                break;
+            case ChatMessage.JOIN:
+                changeRoom(c, message.trim());
+                break;
+            case ChatMessage.LEAVE:
+                changeRoom(c, ChatRoom.LOBBY);
+                break;
+            case ChatMessage.LIST:
+                c.writeMsg("List of the rooms at " + now() + "\n");
+                for (ChatRoom room : rooms.values())
+                    c.writeMsg(room.name + " (" + room.members.size() + " users)"
+                            + (room == c.getRoom() ? " <- you are here" : "") + "\n");
+                break;
+            case ChatMessage.HISTORY:
+                try {
+                    replay(c, Integer.parseInt(message.trim()));
+                } catch (NumberFormatException e) {
+                    c.writeMsg(notif + "Sorry. HISTORY takes the number of messages to get." + notif);
+                }
+                break;
         }
         return true;
     }
 
     // if client sent LOGOUT message to exit
-    synchronized void remove(int id) {
-        String disconnectedClient = "";
-        // scan the array list until we found the Id
-        for (int i = 0; i < al.size(); ++i) {
-            ClientThread ct = al.get(i);
-            // if found remove it
-            if (ct.id == id) {
-                disconnectedClient = ct.getUsername();
-                al.remove(i);
-                break;
-            }
+    void remove(int id) {
+        ChatConnection ct = clients.remove(id);
+        // already gone if its reader and writer both noticed
+        if (ct != null) {
+            unwatch(ct);
+            usernames.remove(ct.getUsername(), ct);
+            resumeTokens.remove(ct);
+            presence.changed();
+            if (cluster != null)
+                cluster.left(ct.getUsername());
+            ChatRoom room = leaveRoom(ct);
+            // the others are closing too when the server stops
+            if (room != null && !stopping)
+                broadcast(room, notif + ct.getUsername() + " has left the chat room." + notif);
         }
-        broadcast(notif + disconnectedClient + " has left the chat room." + notif);
     }
 
     /*
      * To run as a console application
      * > java Server
      * > java Server portNumber
+     * > java Server portNumber --mode=nio
+     * > java Server portNumber --mode=virtual
+     * > java Server portNumber --history=history
+     * > java Server portNumber --cluster-port=0.0.0.0:7001 --cluster-secret=secret --peers=otherhost:7001
+     * > java Server portNumber --tls=chat.p12 --tls-password=secret
+     * > java Server portNumber --ws-port=8080
+     * > java Server portNumber --heartbeat=30 --idle-timeout=3600
      * If the port number is not specified 1500 is used
      */public static void main(String[] args) {
         // start server on port 1500 unless a PortNumber is specified
         int portNumber = 1500;
-        switch (args.length) {
-            case 1:
-                try {
-                    portNumber = Integer.parseInt(args[0]);
-                } catch (Exception e) {
-                    System.out.println("Invalid port number.");
-                    System.out.println("Usage is: > java Server [portNumber]");
+        boolean portGiven = false;
+        ServerOptions options = new ServerOptions();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                if (!options.parse(arg)) {
+                    System.out.println("Invalid option " + arg + ".");
+                    System.out.println("Usage is: > java Server [portNumber] " + ServerOptions.usage());
                     return;
                 }
-            case 0:
-                break;
-            default:
-                System.out.println("Usage is: > java Server [portNumber]");
+                continue;
+            }
+            try {
+                if (portGiven)
+                    throw new IllegalArgumentException();
+                portNumber = Integer.parseInt(arg);
+                portGiven = true;
+            } catch (Exception e) {
+                System.out.println("Invalid port number.");
+                System.out.println("Usage is: > java Server [portNumber] " + ServerOptions.usage());
                 return;
-
+            }
         }
         // create a server object and start it
-        Server server = new Server(portNumber);
+        Server server = new Server(portNumber, options);
         server.start();
     }
 
-    // One instance of this thread will run for each client
-    class ClientThread extends Thread {
+    // One instance of this will run on its own thread for each client, with a
+    // second thread writing what the others queue for it
+    class ClientThread implements Runnable, ChatConnection {
         // the socket to get messages from client
         Socket socket;
         ObjectInputStream sInput;
-        ObjectOutputStream sOutput;
+        // what we send is written to the channel of the socket, through TLS if
+        // the Server has it
+        GatheringByteChannel channel;
+        // the input stream of the binary protocol, used instead when binary
+        DataInputStream dInput;
+        boolean binary;
+        // set once the Client agreed to compression (FrameCodec.COMPRESS)
+        volatile FrameDeflater deflater;
+        Inflater inflater;
+        // a Client of version 2 gets the room messages numbered, and may
+        // have said where it left off (FrameCodec.RESUME)
+        boolean sequenced;
+        String resumeRoom = ChatRoom.LOBBY;
+        long resumeAfter = -1;
+        String resumeProof;
+        // of the binary protocol agreed on, 0 with serialization: from
+        // version 3 it answers PING (see Heartbeat) and is told REFUSED,
+        // from version 4 it is given a TOKEN for its RESUME
+        int version;
+        final Heartbeat heartbeat = new Heartbeat();
         // my unique id (easier for deconnection)
         int id;
         // the Username of the Client
@@ -204,89 +913,212 @@ public class Server {
         ChatMessage cm;
         // timestamp
         String date;
+        // the room it is in
+        volatile ChatRoom room;
+        // the encoded messages waiting for the writer
+        Outbox outbox = new Outbox(options.highWatermark, options.lowWatermark, options.slowPolicy, dropped);
+        // the thread running drain(), once logged in
+        volatile Thread writer;
+        // how fast it may send, only used by its reader
+        TokenBucket sendLimit = options.userLimit();
+        volatile boolean closed;
 
         // Constructor
         ClientThread(Socket socket) {
             // a unique id
-            id = ++uniqueId;
+            id = nextId();
             this.socket = socket;
+        }
+
+        // the TLS handshake, the stream header or HELLO and the username,
+        // false if the Client did not get that far
+        private boolean login() {
             // Creating both Data Stream
             System.out.println("Thread trying to create Object Input/Output Streams");
+            // not waiting forever for a Client that says nothing
+            TimerWheel.Timeout deadline = loginDeadline(this::close);
             try {
-                sOutput = new ObjectOutputStream(socket.getOutputStream());
-                sInput = new ObjectInputStream(socket.getInputStream());
-                // read the username
-                username = (String) sInput.readObject();
-                broadcast(notif + username + " has joined the chat room." + notif);
+                InputStream raw;
+                if (tls != null) {
+                    TlsChannel t = new TlsChannel(socket.getChannel(), TlsChannel.serverEngine(tls));
+                    t.handshake();
+                    channel = t;
+                    raw = t.inputStream();
+                } else {
+                    channel = socket.getChannel();
+                    raw = socket.getInputStream();
+                }
+                send(ByteBuffer.wrap(SerialEncoder.header()));
+                // a binary client answers our header with HELLO instead of its own
+                BufferedInputStream in = new BufferedInputStream(new Metrics.CountingInputStream(raw, bytesIn));
+                byte[] hello = FrameCodec.hello();
+                byte[] first = new byte[hello.length];
+                in.mark(hello.length);
+                dInput = new DataInputStream(in);
+                dInput.readFully(first, 0, FrameCodec.MAGIC.length);
+                if (Arrays.equals(first, 0, FrameCodec.MAGIC.length, hello, 0, FrameCodec.MAGIC.length)) {
+                    dInput.readFully(first, FrameCodec.MAGIC.length, 1);
+                    version = first[FrameCodec.MAGIC.length];
+                    if (version < 1)
+                        throw new StreamCorruptedException("unsupported protocol version " + version);
+                    // a newer Client speaks our version
+                    version = Math.min(version, FrameCodec.VERSION);
+                    binary = true;
+                    sequenced = version >= 2;
+                    send(ByteBuffer.wrap(FrameCodec.hello(version)));
+                    // read the username, after where it left off if it is coming back
+                    ChatMessage login = FrameCodec.read(dInput);
+                    if (sequenced && login.getType() == FrameCodec.RESUME) {
+                        resumeAfter = FrameCodec.seqOf(login.getMessage());
+                        resumeRoom = FrameCodec.roomOf(login.getMessage());
+                        resumeProof = FrameCodec.textOf(login.getMessage());
+                        login = FrameCodec.read(dInput);
+                    }
+                    if (login.getType() != FrameCodec.LOGIN)
+                        throw new StreamCorruptedException("expected login");
+                    username = login.getMessage();
+                } else {
+                    in.reset();
+                    sInput = new ObjectInputStream(in);
+                    // read the username
+                    username = (String) sInput.readObject();
+                }
             } catch (IOException e) {
                 display("Exception creating new Input/output Streams: " + e);
-                return;
+                return false;
             } catch (ClassNotFoundException e) {
+                return false;
+            } finally {
+                cancel(deadline);
             }
 
             date = new Date().toString() + "\n";
+            // no one can be told apart without a name
+            return username != null && !username.trim().isEmpty();
+        }
 
+        public int getClientId() {
+            return id;
         }
 
         public String getUsername() {
             return username;
         }
 
+        public String getDate() {
+            return date;
+        }
+
+        public ChatRoom getRoom() {
+            return room;
+        }
+
+        public void setRoom(ChatRoom room) {
+            this.room = room;
+        }
+
+        public long getQueuedBytes() {
+            return outbox.getQueuedBytes();
+        }
+
+        public long getDroppedMessages() {
+            return outbox.getDropped();
+        }
+
+        public TokenBucket getSendLimit() {
+            return sendLimit;
+        }
+
+        public Heartbeat getHeartbeat() {
+            return heartbeat;
+        }
+
         public void setUsername(String username) {
             this.username = username;
-        }// infinite loop to read and forward message
+        }
 
-        public void run() {
-            // to loop until LOGOUT
-            boolean keepGoing = true;
-            while (keepGoing) {
-                // read a String (which is an object)
-                try {
-                    cm = (ChatMessage) sInput.readObject();
-                } catch (IOException e) {
-                    display(username + " Exception reading Streams: " + e);
-                    break;
-                } catch (ClassNotFoundException e2) {
-                    break;
-                }
-                // get the message from the ChatMessage object received
-                String message = cm.getMessage();
-                // different actions based on type message
-                switch (cm.getType()) {
-                    case ChatMessage.MESSAGE:
-                        boolean confirmation = broadcast(username + ": " + message);
-                        if (confirmation == false) {
-                            String msg = notif + "Sorry. No such user exists." + notif;
-                            writeMsg(msg);
-                        }
-                        break;
-                    case ChatMessage.LOGOUT:
-                        display(username + " disconnected with a LOGOUT message.");
-                        keepGoing = false;
-                        break;
-                    case ChatMessage.WHOISIN:
-                        writeMsg("List of the users connected at " + sdf.format(new Date()) +
+        // start the reader, which starts the writer once logged in
+        void start() {
+            startThread(this, "client-" + id);
+        }
 
-                                "\n");
+        // infinite loop to read and forward message
 
-                        // send list of active clients
-                        for (int i = 0; i < al.size(); ++i) {
-                            ClientThread ct = al.get(i);
-                            writeMsg((i + 1) + ") " + ct.username + " since " + ct.date);
-                        }
+        public void run() {
+            if (!login() || stopping) {
+                close();
+                return;
+            }
+            // add this client to the list
+            if (!join(this, resumeRoom, resumeAfter, resumeProof)) {
+                refused.inc();
+                refuse(notif + "Sorry. The username " + username + " is already taken." + notif);
+                return;
+            }
+            writer = startThread(this::drain, "writer-" + id);
+            try {
+                // to loop until LOGOUT
+                boolean keepGoing = true;
+                while (keepGoing) {
+                    // read a String (which is an object)
+                    try {
+                        cm = binary ? FrameCodec.read(dInput, inflater) : (ChatMessage) sInput.readObject();
+                    } catch (IOException e) {
+                        display(username + " Exception reading Streams: " + e);
                         break;
+                    } catch (ClassNotFoundException e2) {
+                        break;
+                    }
+                    heartbeat.heard = true;
+                    // it only says it is alive
+                    if (binary && cm.getType() == FrameCodec.PONG)
+                        continue;
+                    if (binary && cm.getType() == FrameCodec.COMPRESS) {
+                        compress(cm.getMessage());
+                        continue;
+                    }
+                    // different actions based on type message
+                    keepGoing = handle(this, cm);
                 }
+            } finally {
+                // disconnected, even by an exception: remove from client list
+                remove(id);
+                close();
             }
-            // if out of the loop then disconnected and remove from client list
-            remove(id);
-            close();
+        }
+
+        // answer the compression offer, the answer goes out before anything
+        // deflated
+        private void compress(String offer) {
+            boolean accept = acceptsCompression(offer);
+            if (accept)
+                inflater = new Inflater(true);
+            outbox.offer(ByteBuffer.wrap(FrameCodec.encode(FrameCodec.COMPRESS, accept ? FrameCodec.DEFLATE : "")));
+            if (accept)
+                deflater = new FrameDeflater(options.compressThreshold);
+        }
+
+        // stop after the queued messages, the reader stops when the socket closes
+        public void finish() {
+            outbox.shutdown();
+            // not started if the server stopped right after its login
+            if (writer == null)
+                close();
+        }
+
+        public boolean isClosed() {
+            return closed;
         }
 
         // close everything
-        private void close() {
+        public void close() {
+            closed = true;
+            if (writer != null && writer != Thread.currentThread())
+                writer.interrupt();
+            // the socket first, it unblocks a writer stuck on a slow Client
             try {
-                if (sOutput != null)
-                    sOutput.close();
+                if (socket != null)
+                    socket.close();
             } catch (Exception e) {
             }
             try {
@@ -294,30 +1126,83 @@ public class Server {
                     sInput.close();
             } catch (Exception e) {
             }
-            ;
-            try {
-                if (socket != null)
-                    socket.close();
-            } catch (Exception e) {
-            }
         }
 
-        // write a String to the Client output stream
-        private boolean writeMsg(String msg) {
-            // if Client is still connected send the message to it
-            if (!socket.isConnected()) {
+        // queue a message for the writer, false if the Client is gone or so
+        // slow that the slow policy says to disconnect it
+        public boolean writeMsg(EncodedMessage msg) {
+            if (closed || !queue(msg.frame(binary, deflater, sequenced)))
+                return false;
+            messagesOut.inc();
+            return true;
+        }
+
+        public boolean ping() {
+            return version >= 3 && !closed && queue(ByteBuffer.wrap(FrameCodec.encode(FrameCodec.PING, "")));
+        }
+
+        public void resumeToken(String token) {
+            if (version >= 4)
+                queue(ByteBuffer.wrap(FrameCodec.encode(FrameCodec.TOKEN, token)));
+        }
+
+        // queue a frame for the writer, false if the slow policy disconnected the Client
+        private boolean queue(ByteBuffer frame) {
+            if (!outbox.offer(frame)) {
+                display(notif + username + " is not reading its messages, disconnecting" + notif);
+                slowDisconnects.inc();
                 close();
                 return false;
-            } // write the message to the stream
+            }
+            return true;
+        }
+
+        // write an encoded message to the Client
+        private void send(ByteBuffer frame) throws IOException {
+            while (frame.hasRemaining())
+                channel.write(frame);
+        }
+
+        // write the first count messages of batch with as few system calls as possible
+        private void send(ByteBuffer[] batch, int count) throws IOException {
+            while (batch[count - 1].hasRemaining()) {
+                bytesOut.add(channel.write(batch, 0, count));
+                writes.inc();
+            }
+        }
+
+        // tell a Client that cannot join why, and close
+        void refuse(String msg) {
+            display(msg);
             try {
-                sOutput.writeObject(msg);
+                send(version >= 3 ? ByteBuffer.wrap(FrameCodec.encode(FrameCodec.REFUSED, msg))
+                        : new EncodedMessage(msg, false).frame(binary));
+            } catch (IOException e) {
             }
-            // if an error occurs, do not abort just inform the user
-            catch (IOException e) {
-                display(notif + "Error sending message to " + username + notif);
-                display(e.toString());
+            close();
+        }
+
+        // the writer: send the queued messages to the Client output stream,
+        // all that are queued together (see ServerOptions.coalesceWindow)
+        private void drain() {
+            ByteBuffer[] batch = new ByteBuffer[Outbox.BATCH];
+            long window = options.coalesceWindow * 1000;
+            try {
+                int n;
+                while (!closed && (n = outbox.take(batch, options.coalesceBytes, window)) > 0)
+                    send(batch, n);
+                // finished, everything queued is out
+                close();
+            } catch (InterruptedException e) {
+                // closed
+            } catch (IOException e) {
+                if (!closed) {
+                    display(notif + "Error sending message to " + username + notif);
+                    display(e.toString());
+                }
+                remove(id);
+                close();
             }
-            return true;
         }
     }
 }
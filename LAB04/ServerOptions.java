@@ -0,0 +1,270 @@
+import java.util.*;
+
+// startup options of the Server, given as --name=value arguments
+class ServerOptions {
+    // how connections are served: "thread" (one ClientThread on a platform
+    // thread each), "virtual" (one ClientThread on a virtual thread each) or "nio"
+    String mode = "thread";
+    // number of selector event loops in nio mode
+    int loops = Runtime.getRuntime().availableProcessors();
+    // bytes a client may have waiting to be sent before it counts as slow,
+    // and the level it has to get back under to stop being slow (at most the
+    // high watermark)
+    long highWatermark = 1024 * 1024;
+    long lowWatermark = 256 * 1024;
+    // what to do with a slow client, one of the Outbox policies
+    String slowPolicy = Outbox.DISCONNECT;
+    // a writer waits up to this many microseconds for more messages to send
+    // together, or until this many bytes are queued, then sends them in one
+    // gathering write
+    long coalesceWindow = 0;
+    long coalesceBytes = 64 * 1024;
+    // disable Nagle's algorithm on the client sockets
+    boolean tcpNoDelay;
+    // cluster mode: the address the other nodes connect to (port 0 for a
+    // single Server), the secret they all share, the host:port of the nodes
+    // to connect to and the name of this node, unique in the cluster
+    String clusterHost = "127.0.0.1";
+    int clusterPort;
+    String clusterSecret;
+    List<String> peers = new ArrayList<String>();
+    String nodeName;
+    // how long a stopping Server lets the clients get what is queued for
+    // them before it cuts them off
+    long drainTimeout = 5000;
+    // where the metrics are served in the Prometheus format, no metrics
+    // endpoint without a port
+    String metricsHost = "127.0.0.1";
+    int metricsPort;
+    // the directory of the history log, no history without it
+    String historyDir;
+    // size of a history segment, how many segments are kept and how often the
+    // new messages are forced to disk (of the mailbox too)
+    int historySegment = 64 * 1024 * 1024;
+    int historySegments = 16;
+    long historyFsync = 1000;
+    // messages of the lobby a client gets when it logs in
+    int historyOnJoin;
+    // whether binary clients that offer compression get it, and the payload
+    // size from which a frame is worth deflating
+    boolean compression = true;
+    int compressThreshold = FrameDeflater.DEFAULT_THRESHOLD;
+    // messages per second a client may send to its room, and all the clients
+    // together (0 for no limit), each with the burst it may send at once
+    // (0 for one second of the rate)
+    long rateLimit = 200;
+    long rateBurst;
+    long globalRateLimit;
+    long globalRateBurst;
+    // messages each room keeps for the clients that come back, and how many
+    // characters of text they may add up to, see ChatRoom
+    int resumeBuffer = 256;
+    long resumeChars = 1024 * 1024;
+    // TLS with the key of this keystore (PKCS12 or JKS), plain TCP without
+    // it, how many sessions are kept for the clients that come back and for
+    // how many seconds
+    String tlsKeystore;
+    String tlsPassword = "changeit";
+    int tlsSessionCache = 20480;
+    int tlsSessionTimeout = 86400;
+    // the port of the WebSocket gateway for browsers, none without it
+    int wsPort;
+    // the directory of the mailbox of the private messages to users logged
+    // in nowhere, "No such user" without it, how many are kept per user, how
+    // many users may have some and the size and number of its segments
+    String mailboxDir;
+    int mailboxLimit = 100;
+    int mailboxUsers = 10000;
+    int mailboxSegment = 64 * 1024 * 1024;
+    int mailboxSegments = 16;
+    // seconds between two looks at each client: one that sent nothing since
+    // the last look is pinged, and disconnected if it did not answer by the
+    // next one, as is one that has not logged in after two (0 for none).
+    // And the seconds a client may send no message before it is
+    // disconnected, checked at each look (0 for no limit).
+    long heartbeat = 30;
+    long idleTimeout;
+
+    // the bucket of a client, null if there is no limit
+    TokenBucket userLimit() {
+        return rateLimit == 0 ? null : new TokenBucket(rateLimit, rateBurst == 0 ? rateLimit : rateBurst);
+    }
+
+    // the bucket all the clients share, null if there is no limit
+    TokenBucket globalLimit() {
+        return globalRateLimit == 0 ? null
+                : new TokenBucket(globalRateLimit, globalRateBurst == 0 ? globalRateLimit : globalRateBurst);
+    }
+
+    // read one --name=value argument, false if it is not a known option
+    boolean parse(String arg) {
+        if (!arg.startsWith("--") || arg.indexOf('=') < 0)
+            return false;
+        String name = arg.substring(2, arg.indexOf('='));
+        String value = arg.substring(arg.indexOf('=') + 1);
+        try {
+            switch (name) {
+                case "mode":
+                    if (!value.equals("thread") && !value.equals("virtual") && !value.equals("nio"))
+                        return false;
+                    mode = value;
+                    return true;
+                case "loops":
+                    loops = Integer.parseInt(value);
+                    return loops > 0;
+                case "high-watermark":
+                    highWatermark = Long.parseLong(value);
+                    return highWatermark > 0;
+                case "low-watermark":
+                    lowWatermark = Long.parseLong(value);
+                    return lowWatermark >= 0;
+                case "slow-policy":
+                    if (!value.equals(Outbox.DROP_OLDEST) && !value.equals(Outbox.DROP_NEWEST)
+                            && !value.equals(Outbox.DISCONNECT))
+                        return false;
+                    slowPolicy = value;
+                    return true;
+                case "coalesce-window":
+                    coalesceWindow = Long.parseLong(value);
+                    return coalesceWindow >= 0;
+                case "coalesce-bytes":
+                    coalesceBytes = Long.parseLong(value);
+                    return coalesceBytes > 0;
+                case "tcp-nodelay":
+                    if (!value.equals("true") && !value.equals("false"))
+                        return false;
+                    tcpNoDelay = value.equals("true");
+                    return true;
+                case "cluster-port":
+                    // [host:]port
+                    int hostEnd = value.lastIndexOf(':');
+                    if (hostEnd >= 0)
+                        clusterHost = value.substring(0, hostEnd);
+                    clusterPort = Integer.parseInt(value.substring(hostEnd + 1));
+                    return clusterPort > 0 && clusterPort < 65536 && !clusterHost.isEmpty();
+                case "cluster-secret":
+                    clusterSecret = value;
+                    return !value.isEmpty();
+                case "peers":
+                    peers.clear();
+                    for (String peer : value.split(",")) {
+                        int colon = peer.lastIndexOf(':');
+                        if (colon <= 0 || Integer.parseInt(peer.substring(colon + 1)) <= 0)
+                            return false;
+                        peers.add(peer);
+                    }
+                    return true;
+                case "node":
+                    nodeName = value;
+                    return !value.isEmpty() && value.indexOf('\0') < 0;
+                case "drain-timeout":
+                    drainTimeout = Long.parseLong(value);
+                    return drainTimeout >= 0;
+                case "metrics":
+                    // [host:]port
+                    int colon = value.lastIndexOf(':');
+                    if (colon >= 0)
+                        metricsHost = value.substring(0, colon);
+                    metricsPort = Integer.parseInt(value.substring(colon + 1));
+                    return metricsPort > 0 && metricsPort < 65536 && !metricsHost.isEmpty();
+                case "history":
+                    historyDir = value;
+                    return !value.isEmpty();
+                case "history-segment":
+                    historySegment = Integer.parseInt(value);
+                    return historySegment >= 4096;
+                case "history-segments":
+                    historySegments = Integer.parseInt(value);
+                    return historySegments > 0;
+                case "history-fsync":
+                    historyFsync = Long.parseLong(value);
+                    return historyFsync > 0;
+                case "history-on-join":
+                    historyOnJoin = Integer.parseInt(value);
+                    return historyOnJoin >= 0;
+                case "compression":
+                    if (!value.equals("on") && !value.equals("off"))
+                        return false;
+                    compression = value.equals("on");
+                    return true;
+                case "compress-threshold":
+                    compressThreshold = Integer.parseInt(value);
+                    return compressThreshold >= 0;
+                case "rate-limit":
+                    rateLimit = Long.parseLong(value);
+                    return rateLimit >= 0;
+                case "rate-burst":
+                    rateBurst = Long.parseLong(value);
+                    return rateBurst >= 0;
+                case "global-rate-limit":
+                    globalRateLimit = Long.parseLong(value);
+                    return globalRateLimit >= 0;
+                case "global-rate-burst":
+                    globalRateBurst = Long.parseLong(value);
+                    return globalRateBurst >= 0;
+                case "resume-buffer":
+                    resumeBuffer = Integer.parseInt(value);
+                    return resumeBuffer >= 0;
+                case "resume-chars":
+                    resumeChars = Long.parseLong(value);
+                    return resumeChars >= 0;
+                case "tls":
+                    tlsKeystore = value;
+                    return !value.isEmpty();
+                case "tls-password":
+                    tlsPassword = value;
+                    return true;
+                case "tls-session-cache":
+                    tlsSessionCache = Integer.parseInt(value);
+                    return tlsSessionCache >= 0;
+                case "tls-session-timeout":
+                    tlsSessionTimeout = Integer.parseInt(value);
+                    return tlsSessionTimeout >= 0;
+                case "ws-port":
+                    wsPort = Integer.parseInt(value);
+                    return wsPort > 0;
+                case "mailbox":
+                    mailboxDir = value;
+                    return !value.isEmpty();
+                case "mailbox-limit":
+                    mailboxLimit = Integer.parseInt(value);
+                    return mailboxLimit > 0;
+                case "mailbox-users":
+                    mailboxUsers = Integer.parseInt(value);
+                    return mailboxUsers > 0;
+                case "mailbox-segment":
+                    mailboxSegment = Integer.parseInt(value);
+                    return mailboxSegment >= 4096;
+                case "mailbox-segments":
+                    mailboxSegments = Integer.parseInt(value);
+                    return mailboxSegments > 0;
+                case "heartbeat":
+                    heartbeat = Long.parseLong(value);
+                    return heartbeat >= 0;
+                case "idle-timeout":
+                    idleTimeout = Long.parseLong(value);
+                    return idleTimeout >= 0;
+                default:
+                    return false;
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    // the options accepted by parse, for the usage message
+    static String usage() {
+        return "[--mode=thread|virtual|nio] [--loops=n] [--high-watermark=bytes] [--low-watermark=bytes]"
+                + " [--slow-policy=drop-oldest|drop-newest|disconnect] [--coalesce-window=us] [--coalesce-bytes=bytes]"
+                + " [--tcp-nodelay=true|false] [--cluster-port=[host:]port] [--cluster-secret=secret] [--peers=host:port,...] [--node=name]"
+                + " [--drain-timeout=ms] [--metrics=[host:]port]"
+                + " [--history=dir] [--history-segment=bytes]"
+                + " [--history-segments=n] [--history-fsync=ms] [--history-on-join=n]"
+                + " [--compression=on|off] [--compress-threshold=bytes]"
+                + " [--rate-limit=msgs/sec] [--rate-burst=n] [--global-rate-limit=msgs/sec] [--global-rate-burst=n]"
+                + " [--resume-buffer=messages] [--resume-chars=n] [--tls=keystore] [--tls-password=password]"
+                + " [--tls-session-cache=n] [--tls-session-timeout=seconds] [--ws-port=port]"
+                + " [--mailbox=dir] [--mailbox-limit=n] [--mailbox-users=n] [--mailbox-segment=bytes] [--mailbox-segments=n]"
+                + " [--heartbeat=seconds] [--idle-timeout=seconds]";
+    }
+}
@@ -0,0 +1,128 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// one thread running the delayed tasks of every connection, a hashed timer
+// wheel: the time is cut in ticks, a task goes in the slot of the tick it
+// is due at, modulo the number of slots, and each tick the thread runs the
+// due tasks of one slot. Scheduling and cancelling take constant time
+// however many tasks are waiting, and a cancelled task is unlinked at once
+// instead of waiting for its time in a queue. A task runs up to one tick
+// late, on the thread of the wheel, so it has to be short.
+class TimerWheel {
+    // the Server wheel: milliseconds per tick, and slots enough for a
+    // heartbeat of up to 51 seconds to come round in one turn
+    static final long TICK = 100;
+    static final int SLOTS = 512;
+    private final long tickNanos;
+    // each slot is a doubly linked list of its tasks, the mask picks the slot
+    private final Timeout[] slots;
+    private final int mask;
+    // the ticks gone by since the wheel started
+    private long tick;
+    private volatile boolean running = true;
+    private final Thread thread;
+
+    // a task waiting in the wheel
+    static class Timeout {
+        private final Runnable task;
+        // the tick it is due at, later than the current one if it has to go
+        // round the wheel more times
+        private final long due;
+        private Timeout prev, next;
+        // in its slot, neither run nor cancelled yet
+        private boolean waiting;
+
+        private Timeout(Runnable task, long due) {
+            this.task = task;
+            this.due = due;
+        }
+    }
+
+    // slots is rounded up to a power of two
+    TimerWheel(long tickMillis, int slots, String name) {
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int n = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+        this.slots = new Timeout[n];
+        mask = n - 1;
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // run task in about delay milliseconds, on the thread of the wheel
+    synchronized Timeout schedule(Runnable task, long delayMillis) {
+        long ticks = Math.max(1, (TimeUnit.MILLISECONDS.toNanos(delayMillis) + tickNanos - 1) / tickNanos);
+        Timeout t = new Timeout(task, tick + ticks);
+        int slot = (int) (t.due & mask);
+        t.next = slots[slot];
+        if (t.next != null)
+            t.next.prev = t;
+        slots[slot] = t;
+        t.waiting = true;
+        return t;
+    }
+
+    // the task of t will not run, if it has not already; t may be null
+    synchronized void cancel(Timeout t) {
+        if (t != null && t.waiting)
+            unlink(t);
+    }
+
+    private void unlink(Timeout t) {
+        if (t.prev != null)
+            t.prev.next = t.next;
+        else
+            slots[(int) (t.due & mask)] = t.next;
+        if (t.next != null)
+            t.next.prev = t.prev;
+        t.prev = t.next = null;
+        t.waiting = false;
+    }
+
+    // the tasks of the slot of the next tick that are due, taken out of it
+    private synchronized List<Runnable> advance() {
+        tick++;
+        List<Runnable> due = new ArrayList<Runnable>();
+        Timeout t = slots[(int) (tick & mask)];
+        while (t != null) {
+            Timeout next = t.next;
+            if (t.due <= tick) {
+                unlink(t);
+                due.add(t.task);
+            }
+            t = next;
+        }
+        return due;
+    }
+
+    private void run() {
+        long start = System.nanoTime();
+        long ticks = 0;
+        while (running) {
+            // a wheel that fell behind catches up without sleeping
+            long wait = start + ++ticks * tickNanos - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            // outside the lock, a task may schedule again
+            for (Runnable task : advance()) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    System.out.println("Exception in a task of " + thread.getName() + ": " + e);
+                }
+            }
+        }
+    }
+
+    // no more tasks run, those waiting are forgotten
+    void stop() {
+        running = false;
+        thread.interrupt();
+    }
+}
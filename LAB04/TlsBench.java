@@ -0,0 +1,180 @@
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.security.KeyStore;
+import java.util.*;
+import javax.net.ssl.*;
+
+/*
+ * The cost of TLS against plain TCP: how many clients can connect per second
+ * (a full handshake each, then resuming a cached session, as a reconnect
+ * storm does) and how long a message takes from a sender to a reader
+ * through the Server. The key is self-signed, made with keytool in a
+ * temporary directory, and both Servers run in this process.
+ * > java TlsBench [connections] [messages] [thread|virtual|nio]
+ * e.g. > java TlsBench 500 20000 nio
+ */
+public class TlsBench {
+    private static final PrintStream out = System.out;
+    private static final String PASSWORD = "changeit";
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        String mode = args.length > 2 ? args[2] : "thread";
+
+        Path dir = Files.createTempDirectory("tlsbench");
+        Path keystore = dir.resolve("chat.p12");
+        Process keytool = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "keytool").toString(),
+                "-genkeypair", "-alias", "chat", "-keyalg", "EC", "-groupname", "secp256r1", "-dname", "CN=localhost",
+                "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-validity", "30", "-storetype", "PKCS12", "-keystore",
+                keystore.toString(), "-storepass", PASSWORD).redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        if (keytool.waitFor() != 0)
+            throw new IOException("keytool failed");
+
+        // the Servers print every message, not the benchmark
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        int port;
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        Server plain = start(port, mode, null);
+        Server secure = start(port + 1, mode, keystore.toString());
+        Thread.sleep(500);
+
+        out.printf("%d connections, %d messages, %s mode%n", connections, messages, mode);
+        out.printf("%-12s %14s %12s%n", "connect", "per second", "ms each");
+        connectRate("plain", connections, () -> plain(port));
+        // a context per connection, nothing to resume
+        List<SSLSocketFactory> fresh = new ArrayList<SSLSocketFactory>();
+        for (int i = 0; i < connections; i++)
+            fresh.add(context(keystore).getSocketFactory());
+        Iterator<SSLSocketFactory> factories = fresh.iterator();
+        connectRate("tls-full", connections, () -> tls(factories.next(), port + 1));
+        // one context, every connection but the first resumes its session
+        SSLSocketFactory shared = context(keystore).getSocketFactory();
+        connectRate("tls-resumed", connections, () -> tls(shared, port + 1));
+
+        out.printf("%-12s %14s %12s%n", "message", "per second", "us each");
+        messageRate("plain", messages, () -> plain(port));
+        messageRate("tls", messages, () -> tls(shared, port + 1));
+
+        plain.stop();
+        secure.stop();
+        Files.delete(keystore);
+        Files.delete(dir);
+        System.exit(0);
+    }
+
+    interface Connector {
+        Socket connect() throws IOException;
+    }
+
+    private static Server start(int port, String mode, String keystore) {
+        ServerOptions options = new ServerOptions();
+        options.mode = mode;
+        options.rateLimit = 0;
+        // a reader a few thousand messages behind is not a slow Client here
+        options.highWatermark = 64 * 1024 * 1024;
+        // the handshake is several small writes each way, Nagle would hold them
+        options.tcpNoDelay = true;
+        options.tlsKeystore = keystore;
+        options.tlsPassword = PASSWORD;
+        Server server = new Server(port, options);
+        Thread t = new Thread(server::start);
+        t.setDaemon(true);
+        t.start();
+        return server;
+    }
+
+    // a client context trusting the self-signed key
+    private static SSLContext context(Path keystore) throws Exception {
+        KeyStore trusted = KeyStore.getInstance(keystore.toFile(), PASSWORD.toCharArray());
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(trusted);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, tmf.getTrustManagers(), null);
+        return context;
+    }
+
+    private static Socket plain(int port) throws IOException {
+        Socket socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress("localhost", port));
+        return socket;
+    }
+
+    private static Socket tls(SSLSocketFactory factory, int port) throws IOException {
+        SSLSocket socket = (SSLSocket) factory.createSocket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress("localhost", port));
+        socket.startHandshake();
+        return socket;
+    }
+
+    // the stream header and HELLO, what every binary Client does first
+    private static DataInputStream hello(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        in.readFully(new byte[4]);
+        OutputStream o = socket.getOutputStream();
+        o.write(FrameCodec.hello());
+        o.flush();
+        in.readFully(new byte[FrameCodec.hello().length]);
+        return in;
+    }
+
+    private static void connectRate(String name, int connections, Connector connector) throws IOException {
+        long start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            try (Socket s = connector.connect()) {
+                hello(s);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        out.printf("%-12s %14.0f %12.3f%n", name, connections * 1e9 / elapsed, elapsed / 1e6 / connections);
+    }
+
+    // send messages from one Client to another in the lobby, as fast as they go
+    private static void messageRate(String name, int messages, Connector connector) throws Exception {
+        // the sender logs in first, then the reader
+        Socket sender = connector.connect();
+        DataInputStream senderIn = hello(sender);
+        DataOutputStream senderOut = new DataOutputStream(new BufferedOutputStream(sender.getOutputStream()));
+        FrameCodec.write(senderOut, FrameCodec.LOGIN, name + "-sender");
+        Socket reader = connector.connect();
+        DataInputStream readerIn = hello(reader);
+        DataOutputStream readerOut = new DataOutputStream(new BufferedOutputStream(reader.getOutputStream()));
+        FrameCodec.write(readerOut, FrameCodec.LOGIN, name + "-reader");
+        // the sender gets its own messages too, nobody has to wait for it
+        Thread drain = new Thread(() -> {
+            try {
+                while (true)
+                    FrameCodec.read(senderIn);
+            } catch (IOException e) {
+            }
+        });
+        drain.setDaemon(true);
+        drain.start();
+        Thread.sleep(200);
+        String text = "the quick brown fox jumps over the lazy dog, then does it again ";
+        long start = System.nanoTime();
+        Thread send = new Thread(() -> {
+            try {
+                for (int i = 0; i < messages; i++)
+                    FrameCodec.write(senderOut, ChatMessage.MESSAGE, text + i);
+            } catch (IOException e) {
+                out.println(name + " could not send: " + e);
+            }
+        });
+        send.start();
+        String last = text + (messages - 1) + "\n";
+        while (!FrameCodec.read(readerIn).getMessage().endsWith(last)) {
+        }
+        long elapsed = System.nanoTime() - start;
+        send.join();
+        out.printf("%-12s %14.0f %12.3f%n", name, messages * 1e9 / elapsed, elapsed / 1e3 / messages);
+        sender.close();
+        reader.close();
+    }
+}
@@ -0,0 +1,268 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.net.ssl.*;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+
+// TLS over a SocketChannel with an SSLEngine, so that the Server keeps its
+// channels: a ClientThread reads and writes it blocking, handshake() first,
+// a NioServer Session non-blocking, the handshake going on as it reads.
+// read() and write() give and take the plain bytes, write() gathering them
+// into as few records as it can. The reader and the writer may be two
+// threads, what goes to the socket is written under one lock, a lock
+// rather than synchronized as a virtual writer blocks in it.
+class TlsChannel implements ByteChannel, GatheringByteChannel {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    // records read from the socket and not unwrapped yet, and what they gave
+    private ByteBuffer netIn, appIn;
+    // records wrapped and not written to the socket yet, in write mode
+    private ByteBuffer netOut;
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    TlsChannel(SocketChannel channel, SSLEngine engine) throws SSLException {
+        this.channel = channel;
+        this.engine = engine;
+        SSLSession session = engine.getSession();
+        netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+        netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+        engine.beginHandshake();
+    }
+
+    // the context of a Server, with the key of the keystore file. Sessions
+    // are cached so that a client coming back resumes its session instead of
+    // making a full handshake.
+    static SSLContext serverContext(String keystore, char[] password, int cacheSize, int timeout)
+            throws IOException, GeneralSecurityException {
+        KeyStore keys = KeyStore.getInstance(new File(keystore), password);
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keys, password);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), null, null);
+        context.getServerSessionContext().setSessionCacheSize(cacheSize);
+        context.getServerSessionContext().setSessionTimeout(timeout);
+        return context;
+    }
+
+    // the engine of one accepted connection. TLS 1.3 only: no renegotiation
+    // a blocking writer would have to wait for.
+    static SSLEngine serverEngine(SSLContext context) {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setEnabledProtocols(new String[] { "TLSv1.3" });
+        return engine;
+    }
+
+    // on a blocking channel: do the whole handshake now
+    void handshake() throws IOException {
+        HandshakeStatus hs;
+        while ((hs = engine.getHandshakeStatus()) != HandshakeStatus.NOT_HANDSHAKING
+                && hs != HandshakeStatus.FINISHED) {
+            if (hs == HandshakeStatus.NEED_TASK)
+                runTasks();
+            else if (hs == HandshakeStatus.NEED_WRAP)
+                wrapHandshake();
+            else if (unwrap() < 0)
+                throw new EOFException("closed during the TLS handshake");
+        }
+    }
+
+    boolean isHandshaking() {
+        return engine.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING;
+    }
+
+    // bytes were read from the socket and not all given out by read() yet
+    boolean hasBuffered() {
+        return appIn.position() > 0 || netIn.position() > 0;
+    }
+
+    // plain bytes into dst, 0 if a non-blocking channel has none yet, -1 at the end
+    public int read(ByteBuffer dst) throws IOException {
+        if (!dst.hasRemaining())
+            return 0;
+        while (appIn.position() == 0) {
+            int r = unwrap();
+            if (r <= 0)
+                return r;
+        }
+        appIn.flip();
+        int n = Math.min(dst.remaining(), appIn.remaining());
+        ByteBuffer part = appIn.duplicate();
+        part.limit(part.position() + n);
+        dst.put(part);
+        appIn.position(appIn.position() + n);
+        appIn.compact();
+        return n;
+    }
+
+    // the plain bytes as a stream for a ClientThread, not Channels.newInputStream:
+    // that one reads under a monitor, pinning a virtual reader to its carrier
+    InputStream inputStream() {
+        return new InputStream() {
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0)
+                    return 0;
+                int n;
+                // a blocking channel gives 0 only for an empty record
+                while ((n = TlsChannel.this.read(ByteBuffer.wrap(b, off, len))) == 0) {
+                }
+                return n;
+            }
+        };
+    }
+
+    // unwrap a record into appIn, reading from the socket if needed, and do
+    // what the handshake asks for: 1 if it got anywhere, 0 if the socket
+    // has nothing yet, -1 at the end
+    private int unwrap() throws IOException {
+        netIn.flip();
+        SSLEngineResult r;
+        try {
+            r = engine.unwrap(netIn, appIn);
+        } finally {
+            netIn.compact();
+        }
+        switch (r.getStatus()) {
+            case BUFFER_UNDERFLOW:
+                // a bigger record than the buffer
+                int size = engine.getSession().getPacketBufferSize();
+                if (netIn.capacity() < size) {
+                    ByteBuffer bigger = ByteBuffer.allocate(size);
+                    netIn.flip();
+                    netIn = bigger.put(netIn);
+                }
+                int n = channel.read(netIn);
+                if (n < 0) {
+                    try {
+                        engine.closeInbound();
+                    } catch (SSLException e) {
+                        // closed without close_notify, the end all the same
+                    }
+                    return -1;
+                }
+                return n == 0 ? 0 : 1;
+            case BUFFER_OVERFLOW:
+                ByteBuffer bigger = ByteBuffer.allocate(appIn.capacity() + engine.getSession().getApplicationBufferSize());
+                appIn.flip();
+                appIn = bigger.put(appIn);
+                return 1;
+            case CLOSED:
+                return -1;
+            default:
+                break;
+        }
+        if (r.getHandshakeStatus() == HandshakeStatus.NEED_TASK)
+            runTasks();
+        if (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP)
+            wrapHandshake();
+        return 1;
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null)
+            task.run();
+    }
+
+    // the records the handshake has to send, without plain bytes
+    private void wrapHandshake() throws IOException {
+        writeLock.lock();
+        try {
+            while (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+                if (wrap(new ByteBuffer[] { EMPTY }, 0, 1).getStatus() == SSLEngineResult.Status.CLOSED)
+                    break;
+            }
+            if (engine.getHandshakeStatus() == HandshakeStatus.NEED_TASK)
+                runTasks();
+            flushNet();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // wrap srcs into netOut, making room for a whole record
+    private SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length) throws SSLException {
+        int size = engine.getSession().getPacketBufferSize();
+        if (netOut.remaining() < size) {
+            ByteBuffer bigger = ByteBuffer.allocate(netOut.position() + size);
+            netOut.flip();
+            netOut = bigger.put(netOut);
+        }
+        return engine.wrap(srcs, offset, length, netOut);
+    }
+
+    // write netOut to the socket, true if all of it went
+    private boolean flushNet() throws IOException {
+        netOut.flip();
+        try {
+            while (netOut.hasRemaining()) {
+                if (channel.write(netOut) == 0)
+                    break;
+            }
+        } finally {
+            netOut.compact();
+        }
+        return netOut.position() == 0;
+    }
+
+    // write the records waiting, true if none is left
+    boolean flush() throws IOException {
+        writeLock.lock();
+        try {
+            return flushNet();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[] { src }, 0, 1);
+    }
+
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    // the plain bytes taken, 0 while the handshake waits for the peer or the
+    // socket does not take the records waiting
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        writeLock.lock();
+        try {
+            if (!flushNet())
+                return 0;
+            long taken = 0;
+            while (srcs[offset + length - 1].hasRemaining()) {
+                SSLEngineResult r = wrap(srcs, offset, length);
+                if (r.getStatus() == SSLEngineResult.Status.CLOSED)
+                    throw new SSLException("TLS closed");
+                taken += r.bytesConsumed();
+                if (r.getHandshakeStatus() == HandshakeStatus.NEED_TASK)
+                    runTasks();
+                if (!flushNet() || r.bytesConsumed() == 0 && isHandshaking())
+                    break;
+            }
+            return taken;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    // no close_notify: close() cuts off slow Clients and must not wait for them
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,32 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+// a token bucket of burst tokens refilled at rate tokens per second, kept
+// as the time it will be full again (the generic cell rate algorithm), so
+// that taking a token is one compare and set whatever the number of threads
+class TokenBucket {
+    // nanoseconds to refill one token, and to refill the whole bucket
+    private final long interval, capacity;
+    // when the bucket has no token taken, in System.nanoTime()
+    private final AtomicLong full;
+    // the owner of the bucket was told it is over the limit, see Server.admit
+    boolean warned;
+
+    TokenBucket(long rate, long burst) {
+        interval = Math.max(1, 1000000000L / rate);
+        capacity = interval * Math.max(1, burst);
+        full = new AtomicLong(System.nanoTime());
+    }
+
+    // take a token, false if there is none left
+    boolean tryAcquire() {
+        long now = System.nanoTime();
+        while (true) {
+            long f = full.get();
+            long next = (f - now > 0 ? f : now) + interval;
+            if (next - now > capacity)
+                return false;
+            if (full.compareAndSet(f, next))
+                return true;
+        }
+    }
+}
@@ -0,0 +1,521 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// the chat for browsers: a WebSocket endpoint (RFC 6455) on its own port,
+// served by one selector thread next to whatever mode the Server runs in.
+// A browser connects to ws://host:port/ (wss:// when the Server has --tls),
+// its first text message is its username and every next one is a line as
+// typed in the Client console: a message, "@user text", WHOISIN, LIST,
+// JOIN room, LEAVE, HISTORY n or LOGOUT. It gets each message as one text
+// frame. Its sessions are ChatConnections like the others, a broadcast
+// encodes the frame once for all of them (EncodedMessage.webSocketFrame).
+// An idle session keeps no buffer: the socket is read into a buffer of the
+// loop and only a partial frame is copied out.
+class WebSocketGateway {
+    // what the handshake hashes the key of the browser with
+    private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    // the frame opcodes
+    static final int CONTINUATION = 0, TEXT = 1, BINARY = 2, CLOSE = 8, PING = 9, PONG = 10;
+    // the close status codes
+    static final int NORMAL = 1000, GOING_AWAY = 1001, PROTOCOL_ERROR = 1002, UNSUPPORTED = 1003,
+            POLICY = 1008, TOO_BIG = 1009;
+    // biggest message a browser may send, and HTTP request
+    static final int MAX_MESSAGE = 64 * 1024;
+    private static final int MAX_REQUEST = 8 * 1024;
+    // longest frame header a browser sends: 2 bytes, 8 of length, 4 of mask
+    private static final int MAX_HEADER = 14;
+
+    private final Server server;
+    private final int port;
+    private final ServerOptions options;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread loop;
+    // work handed over by other threads, run by the loop between selects
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    // what every session is read into and flushed from, on the loop only
+    private final ByteBuffer readBuf = ByteBuffer.allocate(MAX_MESSAGE + MAX_HEADER);
+    private final ByteBuffer[] batch = new ByteBuffer[Outbox.BATCH];
+    // sessions given messages by the loop itself, flushed once the keys
+    // selected are all handled: the join notices of a burst of logins are
+    // one write per session, not one per login
+    private final ArrayDeque<Session> dirty = new ArrayDeque<Session>();
+    private volatile boolean running;
+
+    WebSocketGateway(Server server, ServerOptions options) {
+        this.server = server;
+        this.port = options.wsPort;
+        this.options = options;
+    }
+
+    // listen for the browsers
+    void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        loop = new Thread(this::run, "ws-gateway");
+        loop.setDaemon(true);
+        loop.start();
+        server.display("WebSocket gateway listening on port " + port + ".");
+    }
+
+    // close the sessions still open, after Server.drainClients
+    void stop() {
+        running = false;
+        // start() failed on the port, there is no loop to close them
+        if (loop == null) {
+            try {
+                if (serverChannel != null)
+                    serverChannel.close();
+                if (selector != null)
+                    selector.close();
+            } catch (IOException e) {
+            }
+            return;
+        }
+        selector.wakeup();
+        try {
+            loop.join(1000);
+        } catch (InterruptedException e) {
+        }
+    }
+
+    private void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != loop)
+            selector.wakeup();
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                if (tasks.isEmpty())
+                    selector.select();
+                else
+                    selector.selectNow();
+            } catch (IOException e) {
+                server.display("Exception in the WebSocket gateway: " + e);
+                break;
+            }
+            // what one task or session throws stops only it, not the
+            // gateway with every browser on it
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException | StackOverflowError e) {
+                    server.display("Exception in a task of the WebSocket gateway: " + e);
+                }
+            }
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                if (key.isValid() && key.isAcceptable()) {
+                    accept();
+                    continue;
+                }
+                Session s = (Session) key.attachment();
+                try {
+                    if (key.isValid() && key.isReadable())
+                        s.onReadable();
+                    if (key.isValid() && key.isWritable())
+                        s.flush();
+                } catch (RuntimeException | StackOverflowError e) {
+                    s.crashed(e);
+                }
+            }
+            Session s;
+            while ((s = dirty.poll()) != null) {
+                s.dirty = false;
+                try {
+                    s.flush();
+                } catch (RuntimeException | StackOverflowError e) {
+                    s.crashed(e);
+                }
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() != null)
+                ((Session) key.attachment()).close();
+        }
+        try {
+            serverChannel.close();
+            selector.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private void accept() {
+        SocketChannel channel;
+        while (true) {
+            try {
+                if ((channel = serverChannel.accept()) == null)
+                    return;
+            } catch (IOException e) {
+                server.display("Exception accepting a WebSocket: " + e);
+                return;
+            }
+            server.accepted.inc();
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, options.tcpNoDelay);
+                new Session(channel);
+            } catch (IOException e) {
+                server.display("Exception creating new Input/output Streams: " + e);
+                try {
+                    channel.close();
+                } catch (IOException ioE) {
+                }
+            }
+        }
+    }
+
+    // a frame from the server: final, unmasked
+    static byte[] frame(int opcode, byte[] payload) {
+        int n = payload.length;
+        int header = n < 126 ? 2 : n < 65536 ? 4 : 10;
+        byte[] frame = new byte[header + n];
+        frame[0] = (byte) (0x80 | opcode);
+        if (n < 126) {
+            frame[1] = (byte) n;
+        } else if (n < 65536) {
+            frame[1] = 126;
+            frame[2] = (byte) (n >>> 8);
+            frame[3] = (byte) n;
+        } else {
+            frame[1] = 127;
+            for (int i = 0; i < 8; i++)
+                frame[9 - i] = (byte) ((long) n >>> (8 * i));
+        }
+        System.arraycopy(payload, 0, frame, header, n);
+        return frame;
+    }
+
+    static byte[] textFrame(String text) {
+        return frame(TEXT, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] closeFrame(int code) {
+        return frame(CLOSE, new byte[] { (byte) (code >>> 8), (byte) code });
+    }
+
+    // the answer to the key of the handshake
+    static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key + GUID).getBytes(StandardCharsets.ISO_8859_1));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // a line typed by a browser user, as the Client console reads it
+    static ChatMessage command(String line) {
+        if (line.equalsIgnoreCase("LOGOUT"))
+            return new ChatMessage(ChatMessage.LOGOUT, "");
+        if (line.equalsIgnoreCase("WHOISIN"))
+            return new ChatMessage(ChatMessage.WHOISIN, "");
+        if (line.regionMatches(true, 0, "JOIN ", 0, 5))
+            return new ChatMessage(ChatMessage.JOIN, line.substring(5).trim());
+        if (line.equalsIgnoreCase("LEAVE"))
+            return new ChatMessage(ChatMessage.LEAVE, "");
+        if (line.equalsIgnoreCase("LIST"))
+            return new ChatMessage(ChatMessage.LIST, "");
+        if (line.regionMatches(true, 0, "HISTORY ", 0, 8))
+            return new ChatMessage(ChatMessage.HISTORY, line.substring(8).trim());
+        return new ChatMessage(ChatMessage.MESSAGE, line);
+    }
+
+    // one browser, only read and flushed by the loop: the WebSocket
+    // handshake and framing over a ChannelSession
+    class Session extends ChannelSession {
+        // the handshake is done, the bytes are frames
+        private boolean upgraded;
+        // bytes of a request or frame not complete yet, null most of the time
+        private byte[] partial;
+        // the fragments of a text message not finished yet
+        private ByteArrayOutputStream fragments;
+        // in the dirty queue of the loop
+        private boolean dirty;
+
+        Session(SocketChannel channel) throws IOException {
+            super(WebSocketGateway.this.server, WebSocketGateway.this.options, channel, selector);
+        }
+
+        void execute(Runnable task) {
+            WebSocketGateway.this.execute(task);
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == loop;
+        }
+
+        ByteBuffer[] batch() {
+            return batch;
+        }
+
+        ByteBuffer frame(EncodedMessage msg) {
+            return msg.webSocketFrame();
+        }
+
+        // read what the socket has into the buffer of the loop, handle every
+        // complete request or frame and keep the rest
+        void onReadable() {
+            try {
+                int n;
+                do {
+                    readBuf.clear();
+                    if (partial != null) {
+                        readBuf.put(partial);
+                        partial = null;
+                    }
+                    n = read(readBuf);
+                    if (n < 0) {
+                        drop(username + " Exception reading Streams: end of stream");
+                        return;
+                    }
+                    readBuf.flip();
+                    if (upgraded)
+                        decode();
+                    else
+                        upgrade();
+                    if (readBuf.hasRemaining() && !closing && !closed) {
+                        partial = new byte[readBuf.remaining()];
+                        readBuf.get(partial);
+                    }
+                } while (tls != null && n > 0 && tls.hasBuffered() && !closed && !closing);
+                if (tls != null)
+                    flush();
+            } catch (IOException e) {
+                drop(username + " Exception reading Streams: " + e);
+            }
+        }
+
+        // the HTTP request asking for the upgrade, answered once complete
+        private void upgrade() {
+            int end = -1;
+            for (int i = readBuf.position(); i + 3 < readBuf.limit(); i++) {
+                if (readBuf.get(i) == '\r' && readBuf.get(i + 1) == '\n' && readBuf.get(i + 2) == '\r'
+                        && readBuf.get(i + 3) == '\n') {
+                    end = i + 4;
+                    break;
+                }
+            }
+            if (end < 0) {
+                if (readBuf.remaining() > MAX_REQUEST)
+                    refuse("431 Request Header Fields Too Large", "");
+                return;
+            }
+            byte[] request = new byte[end - readBuf.position()];
+            readBuf.get(request);
+            String[] lines = new String(request, StandardCharsets.ISO_8859_1).split("\r\n");
+            Map<String, String> headers = new HashMap<String, String>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0)
+                    headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+            }
+            String key = headers.get("sec-websocket-key");
+            if (!lines[0].startsWith("GET ") || key == null
+                    || !"websocket".equalsIgnoreCase(headers.get("upgrade"))
+                    || !headers.getOrDefault("connection", "").toLowerCase().contains("upgrade")) {
+                refuse("400 Bad Request", "");
+                return;
+            }
+            if (!"13".equals(headers.get("sec-websocket-version"))) {
+                refuse("426 Upgrade Required", "Sec-WebSocket-Version: 13\r\n");
+                return;
+            }
+            upgraded = true;
+            send(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                    + "Sec-WebSocket-Accept: " + acceptKey(key) + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            decode();
+        }
+
+        // answer a request that is not a WebSocket handshake, and close
+        private void refuse(String status, String headers) {
+            send(("HTTP/1.1 " + status + "\r\n" + headers + "Content-Length: 0\r\nConnection: close\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            closing = true;
+            flush();
+        }
+
+        // handle every complete frame in readBuf
+        private void decode() {
+            while (!closing && !closed) {
+                int p = readBuf.position();
+                if (readBuf.remaining() < 2)
+                    return;
+                int b0 = readBuf.get(p) & 0xff, b1 = readBuf.get(p + 1) & 0xff;
+                boolean fin = (b0 & 0x80) != 0;
+                int opcode = b0 & 0x0f;
+                // no extension was agreed on, and a browser always masks
+                if ((b0 & 0x70) != 0 || (b1 & 0x80) == 0) {
+                    fail(PROTOCOL_ERROR, "bad frame header");
+                    return;
+                }
+                long length = b1 & 0x7f;
+                int header = 2;
+                if (length == 126) {
+                    if (readBuf.remaining() < 4)
+                        return;
+                    length = readBuf.getShort(p + 2) & 0xffff;
+                    header = 4;
+                } else if (length == 127) {
+                    if (readBuf.remaining() < 10)
+                        return;
+                    length = readBuf.getLong(p + 2);
+                    header = 10;
+                }
+                if (length < 0 || length > MAX_MESSAGE) {
+                    fail(TOO_BIG, "frame too big");
+                    return;
+                }
+                if (opcode >= CLOSE && (length > 125 || !fin)) {
+                    fail(PROTOCOL_ERROR, "bad control frame");
+                    return;
+                }
+                header += 4;
+                if (readBuf.remaining() < header + length)
+                    return;
+                byte[] payload = new byte[(int) length];
+                int mask = p + header - 4;
+                for (int i = 0; i < payload.length; i++)
+                    payload[i] = (byte) (readBuf.get(p + header + i) ^ readBuf.get(mask + (i & 3)));
+                readBuf.position(p + header + payload.length);
+                onFrame(fin, opcode, payload);
+            }
+        }
+
+        private void onFrame(boolean fin, int opcode, byte[] payload) {
+            switch (opcode) {
+                case TEXT:
+                case CONTINUATION:
+                    if ((opcode == TEXT) == (fragments != null)) {
+                        fail(PROTOCOL_ERROR, "bad fragment");
+                        return;
+                    }
+                    if (fin && fragments == null) {
+                        onText(new String(payload, StandardCharsets.UTF_8));
+                        return;
+                    }
+                    if (fragments == null)
+                        fragments = new ByteArrayOutputStream();
+                    if (fragments.size() + payload.length > MAX_MESSAGE) {
+                        fail(TOO_BIG, "message too big");
+                        return;
+                    }
+                    fragments.write(payload, 0, payload.length);
+                    if (fin) {
+                        String text = fragments.toString(StandardCharsets.UTF_8);
+                        fragments = null;
+                        onText(text);
+                    }
+                    return;
+                case PING:
+                    send(WebSocketGateway.frame(PONG, payload));
+                    return;
+                case PONG:
+                    // it is alive, see ChannelSession.read
+                    return;
+                case CLOSE:
+                    // answer with the same status, then it is gone
+                    int code = payload.length >= 2 ? (payload[0] & 0xff) << 8 | payload[1] & 0xff : NORMAL;
+                    if (code < NORMAL || code >= 5000)
+                        code = NORMAL;
+                    if (username != null)
+                        server.display(username + " closed its WebSocket.");
+                    leave(code);
+                    return;
+                default:
+                    fail(UNSUPPORTED, "binary frames are not chat messages");
+            }
+        }
+
+        // a text message: the username first, then lines of the console
+        private void onText(String text) {
+            if (username == null) {
+                login(text.trim());
+                return;
+            }
+            if (!server.handle(this, command(text))) {
+                server.remove(id);
+                goAway(NORMAL);
+            }
+        }
+
+        private void login(String name) {
+            if (name.isEmpty()) {
+                fail(POLICY, "no username");
+                return;
+            }
+            username = name;
+            date = new Date().toString() + "\n";
+            server.cancel(deadline);
+            if (!server.join(this)) {
+                server.refused.inc();
+                String msg = Server.notif + "Sorry. The username " + name + " is already taken." + Server.notif;
+                server.display(msg);
+                writeMsg(msg);
+                // not logged in, nothing to remove when it goes
+                username = null;
+                goAway(POLICY);
+            }
+        }
+
+        // a protocol error: say why, close with code
+        private void fail(int code, String why) {
+            server.display((username != null ? username : "WebSocket " + id) + " " + why + ", closing");
+            leave(code);
+        }
+
+        // leave the chat, close with code once the queue is written
+        private void leave(int code) {
+            if (username != null)
+                server.remove(id);
+            username = null;
+            goAway(code);
+        }
+
+        // the close frame, then close once it is written
+        private void goAway(int code) {
+            send(closeFrame(code));
+            closing = true;
+            fragments = null;
+            flush();
+        }
+
+        // a browser answers PING by itself, see Heartbeat
+        public boolean ping() {
+            return !closed && queue(ByteBuffer.wrap(WebSocketGateway.frame(PING, new byte[0])));
+        }
+
+        // flush at the end of this round of the loop, on the loop only
+        void flushLater() {
+            if (!dirty) {
+                dirty = true;
+                WebSocketGateway.this.dirty.add(this);
+            }
+        }
+
+        // stop reading and close once the queue and a close frame are written
+        public void finish() {
+            execute(() -> {
+                if (!closed && !closing)
+                    goAway(GOING_AWAY);
+            });
+        }
+    }
+}